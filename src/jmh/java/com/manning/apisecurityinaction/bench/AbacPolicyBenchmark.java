@@ -0,0 +1,118 @@
+package com.manning.apisecurityinaction.bench;
+
+import com.manning.apisecurityinaction.controller.ABACAccessController;
+import com.manning.apisecurityinaction.controller.ABACPolicy;
+import com.manning.apisecurityinaction.controller.DroolsAccessController;
+import com.manning.apisecurityinaction.controller.DroolsAccessController.SessionMode;
+import com.manning.apisecurityinaction.controller.PolicyAccessController;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import spark.HaltException;
+import spark.Request;
+
+// Measures the enforcePolicy filter for each ABAC policy engine, cycling through permitted and (outside office hours)
+// denied requests, and startup: the first construction and decision, including loading and compiling the rules.
+// Add -prof gc for allocation per decision.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AbacPolicyBenchmark {
+	@Param({ "droolsPerRequest", "droolsReused", "compiled", "compiledCached" })
+	public String engine;
+
+	private Request[] requests;
+	private int next;
+
+	@Setup
+	public void setup() {
+		requests = new Request[] {
+			new StubRequest("GET", "/spaces/1/messages/1").build(),
+			new StubRequest("DELETE", "/spaces/1/messages/1").build(),
+			new StubRequest("POST", "/spaces/1/messages").build(),
+			new StubRequest("DELETE", "/spaces/2/messages/7").build(),
+		};
+		for (var request : requests) {
+			request.attribute("subject", "bench");
+		}
+	}
+
+	// A controller that has already loaded its rules. Kept apart so startup() begins cold.
+	@State(Scope.Thread)
+	public static class Engine {
+		ABACAccessController controller;
+
+		@Setup
+		public void setup(AbacPolicyBenchmark benchmark) {
+			controller = benchmark.newController();
+		}
+
+		@TearDown
+		public void tearDown() {
+			if (controller instanceof AutoCloseable) {
+				close((AutoCloseable) controller);
+			}
+		}
+	}
+
+	@Benchmark
+	public boolean enforce(Engine engine) {
+		var request = requests[next];
+		next = (next + 1) % requests.length;
+		return enforce(engine.controller, request);
+	}
+
+	// Each fork measures a single cold start.
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(5)
+	public boolean startup() {
+		var controller = newController();
+		try {
+			return enforce(controller, requests[0]);
+		}
+		finally {
+			if (controller instanceof AutoCloseable) {
+				close((AutoCloseable) controller);
+			}
+		}
+	}
+
+	private static void close(AutoCloseable resource) {
+		try {
+			resource.close();
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private ABACAccessController newController() {
+		var clock = Clock.systemDefaultZone();
+		switch (engine) {
+			case "droolsPerRequest": return new DroolsAccessController(SessionMode.PER_REQUEST, clock);
+			case "droolsReused": return new DroolsAccessController(SessionMode.REUSED, clock);
+			case "compiled": return new PolicyAccessController(ABACPolicy.load("/accessrules.policy"), clock);
+			case "compiledCached": return new PolicyAccessController(ABACPolicy.load("/accessrules.policy"), clock, 10_000);
+			default: throw new IllegalArgumentException(engine);
+		}
+	}
+
+	private static boolean enforce(ABACAccessController controller, Request request) {
+		try {
+			controller.enforcePolicy(request, null);
+			return true;
+		}
+		catch (HaltException e) {
+			return false;
+		}
+	}
+}
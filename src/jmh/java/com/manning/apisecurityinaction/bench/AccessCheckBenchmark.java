@@ -0,0 +1,82 @@
+package com.manning.apisecurityinaction.bench;
+
+import com.manning.apisecurityinaction.controller.TokenController;
+import com.manning.apisecurityinaction.controller.UserController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import spark.Filter;
+import spark.Request;
+
+// Runs a request through a scope filter for each default scope and a permission filter for each of r, w and d,
+// comparing the old string checks with the bitset filters. Each invocation clears the cached bits, as a new
+// request would, so parsing the scope and perms once is included in the cost. Add -prof gc for allocation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessCheckBenchmark {
+	private static final List<String> SCOPES = List.of("create_space", "post_message", "read_message", "list_messages",
+		"delete_message", "add_member");
+	private static final List<String> PERMS = List.of("r", "w", "d");
+
+	private Request request;
+	private List<Filter> stringFilters;
+	private List<Filter> bitsetFilters;
+
+	@Setup
+	public void setup() {
+		request = new StubRequest("GET", "/spaces/1/messages/1").build();
+		request.attribute("scope", String.join(" ", SCOPES));
+		request.attribute("perms", "rwd");
+
+		// The filters before bitsets, as they were in TokenController and UserController.
+		stringFilters = new ArrayList<>();
+		for (var scope : SCOPES) {
+			stringFilters.add((req, res) -> {
+				var tokenScope = req.<String>attribute("scope");
+				if (!Set.of(tokenScope.split(" ")).contains(scope)) throw new IllegalStateException(scope);
+			});
+		}
+		for (var perm : PERMS) {
+			stringFilters.add((req, res) -> {
+				if (!req.<String>attribute("perms").contains(perm)) throw new IllegalStateException(perm);
+			});
+		}
+
+		var tokenController = new TokenController(null);
+		var userController = new UserController(null, null);
+		bitsetFilters = new ArrayList<>();
+		for (var scope : SCOPES) {
+			bitsetFilters.add(tokenController.requireScope("GET", scope));
+		}
+		for (var perm : PERMS) {
+			bitsetFilters.add(userController.requirePermission("GET", perm));
+		}
+	}
+
+	@Benchmark
+	public void strings() throws Exception {
+		apply(stringFilters);
+	}
+
+	@Benchmark
+	public void bitsets() throws Exception {
+		apply(bitsetFilters);
+	}
+
+	private void apply(List<Filter> filters) throws Exception {
+		// Forget the bits parsed for the previous invocation.
+		request.attribute("scopeBits", null);
+		request.attribute("permBits", null);
+		for (var filter : filters) {
+			filter.handle(request, null);
+		}
+	}
+}
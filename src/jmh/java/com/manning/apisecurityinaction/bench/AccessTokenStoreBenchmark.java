@@ -0,0 +1,132 @@
+package com.manning.apisecurityinaction.bench;
+
+import com.manning.apisecurityinaction.token.OAuth2TokenStore;
+import com.manning.apisecurityinaction.token.SignedJwtAccessTokenStore;
+import com.manning.apisecurityinaction.token.TokenStore;
+import com.manning.apisecurityinaction.token.TokenStore.Token;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+
+// Measures reads from the read-only OAuth2 access token stores, backed by a local stub introspection/JWKS server.
+// SignedJwtAccessUncached verifies the ES256 signature on every read, as before the verified-claims cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessTokenStoreBenchmark {
+	private static final String AUDIENCE = "https://localhost:4567";
+	private static final String ISSUER = "https://as.example.com";
+
+	@Param({ "OAuth2", "SignedJwtAccess", "SignedJwtAccessUncached" })
+	public String store;
+
+	private HttpServer server;
+	private TokenStore tokenStore;
+	private Request request;
+	private String tokenId;
+
+	@Setup
+	public void setup() throws Exception {
+		var signingKey = new ECKeyGenerator(Curve.P_256).keyID("bench").generate();
+		server = stubAuthorizationServer(new JWKSet(signingKey).toPublicJWKSet());
+		var baseUri = "http://localhost:" + server.getAddress().getPort();
+
+		switch (store) {
+			case "OAuth2":
+				tokenStore = new OAuth2TokenStore(URI.create(baseUri + "/introspect"), "bench", "secret",
+					HttpClient.newHttpClient());
+				tokenId = "opaque-access-token";
+				break;
+			case "SignedJwtAccess":
+				tokenStore = new SignedJwtAccessTokenStore(ISSUER, AUDIENCE, JWSAlgorithm.ES256, URI.create(baseUri + "/jwks"));
+				tokenId = signedAccessToken(signingKey);
+				break;
+			case "SignedJwtAccessUncached":
+				tokenStore = new SignedJwtAccessTokenStore(ISSUER, AUDIENCE, JWSAlgorithm.ES256, URI.create(baseUri + "/jwks"),
+					Duration.ofMinutes(5), 0);
+				tokenId = signedAccessToken(signingKey);
+				break;
+			default: throw new IllegalArgumentException(store);
+		}
+		request = new StubRequest("GET", "/spaces/1/messages").build();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (tokenStore instanceof AutoCloseable) {
+			((AutoCloseable) tokenStore).close();
+		}
+		server.stop(0);
+	}
+
+	@Benchmark
+	public Token read() {
+		return tokenStore.read(request, tokenId).orElseThrow();
+	}
+
+	private static String signedAccessToken(ECKey signingKey) throws Exception {
+		var jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID("bench").build(),
+			new JWTClaimsSet.Builder()
+				.issuer(ISSUER)
+				.audience(AUDIENCE)
+				.subject("bench")
+				.expirationTime(Date.from(Instant.now().plus(1, ChronoUnit.HOURS)))
+				.claim("scope", "read_message")
+				.build());
+		jwt.sign(new ECDSASigner(signingKey));
+		return jwt.serialize();
+	}
+
+	private static HttpServer stubAuthorizationServer(JWKSet jwkSet) throws Exception {
+		// Otherwise Nagle's algorithm adds ~40ms to every stub response, swamping the cost being measured.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/introspect", exchange -> {
+			exchange.getRequestBody().readAllBytes();
+			var body = new JSONObject()
+				.put("active", true)
+				.put("sub", "bench")
+				.put("scope", "read_message list_messages")
+				.put("client_id", "bench")
+				.put("exp", Instant.now().plus(1, ChronoUnit.HOURS).getEpochSecond())
+				.toString().getBytes(UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.createContext("/jwks", exchange -> {
+			var body = jwkSet.toString().getBytes(UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/jwk-set+json");
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		return server;
+	}
+}
@@ -0,0 +1,82 @@
+package com.manning.apisecurityinaction.bench;
+
+import com.manning.apisecurityinaction.token.Base64url;
+import com.manning.apisecurityinaction.token.CryptoPrimitives;
+
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.openjdk.jmh.annotations.*;
+
+// Compares the token hashing and HMAC paths before and after reusing per-thread Mac/MessageDigest instances.
+// The "perCall" benchmarks reproduce the old code: provider lookup, key setup and byte[] copies on every call.
+// Add -prof gc for allocation per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoPrimitivesBenchmark {
+	private Key macKey;
+	private String tokenId;
+	private CryptoPrimitives.Hmac hmac;
+	private String taggedId;
+	private int index;
+
+	@Setup
+	public void setup() {
+		var keyBytes = new byte[32];
+		new SecureRandom().nextBytes(keyBytes);
+		macKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+		var idBytes = new byte[20];
+		new SecureRandom().nextBytes(idBytes);
+		tokenId = Base64url.encode(idBytes);
+
+		hmac = CryptoPrimitives.hmac(macKey);
+		taggedId = tokenId + '.' + hmac.computeBase64url(tokenId);
+		index = taggedId.lastIndexOf('.');
+	}
+
+	@Benchmark
+	public String sha256Base64urlPerCall() throws Exception {
+		var sha256 = MessageDigest.getInstance("SHA-256");
+		return Base64url.encode(sha256.digest(tokenId.getBytes(UTF_8)));
+	}
+
+	@Benchmark
+	public String sha256Base64urlThreadLocal() {
+		return CryptoPrimitives.sha256Base64url(tokenId);
+	}
+
+	@Benchmark
+	public String hmacCreatePerCall() throws Exception {
+		var mac = Mac.getInstance(macKey.getAlgorithm());
+		mac.init(macKey);
+		return tokenId + '.' + Base64url.encode(mac.doFinal(tokenId.getBytes(UTF_8)));
+	}
+
+	@Benchmark
+	public String hmacCreateThreadLocal() {
+		return tokenId + '.' + hmac.computeBase64url(tokenId);
+	}
+
+	@Benchmark
+	public boolean hmacVerifyPerCall() throws Exception {
+		var mac = Mac.getInstance(macKey.getAlgorithm());
+		mac.init(macKey);
+		var provided = Base64url.decode(taggedId.substring(index + 1));
+		var computed = mac.doFinal(taggedId.substring(0, index).getBytes(UTF_8));
+		return MessageDigest.isEqual(provided, computed);
+	}
+
+	@Benchmark
+	public boolean hmacVerifyThreadLocal() {
+		return hmac.verifyBase64url(taggedId.substring(0, index), taggedId, index + 1);
+	}
+}
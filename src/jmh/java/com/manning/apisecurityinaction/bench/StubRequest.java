@@ -0,0 +1,82 @@
+package com.manning.apisecurityinaction.bench;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import spark.Request;
+import spark.RequestResponseFactory;
+
+// Builds Spark requests without a running server, backed by in-memory servlet request and session stubs.
+class StubRequest {
+	private final String method;
+	private final String path;
+	private final Map<String, String> headers = new HashMap<>();
+	private final Map<String, String> queryParams = new HashMap<>();
+	private HttpSession session;
+
+	StubRequest(String method, String path) {
+		this.method = method;
+		this.path = path;
+	}
+
+	StubRequest header(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	StubRequest queryParam(String name, String value) {
+		queryParams.put(name, value);
+		return this;
+	}
+
+	Request build() {
+		var attributes = new HashMap<String, Object>();
+		var servletRequest = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+			new Class<?>[] { HttpServletRequest.class }, (proxy, m, args) -> {
+				switch (m.getName()) {
+					case "getMethod": return method;
+					case "getPathInfo": return path;
+					case "getRequestURI": return path;
+					case "getHeader": return headers.get(args[0]);
+					case "getParameter": return queryParams.get(args[0]);
+					case "getAttribute": return attributes.get(args[0]);
+					case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+					case "getRemoteAddr": return "127.0.0.1";
+					case "getSession":
+						var create = args == null || (Boolean) args[0];
+						if (session == null && create) {
+							session = newSession();
+						}
+						return session;
+					default: return defaultValue(m.getReturnType());
+				}
+			});
+		return RequestResponseFactory.create(servletRequest);
+	}
+
+	private HttpSession newSession() {
+		var id = UUID.randomUUID().toString();
+		var attributes = new HashMap<String, Object>();
+		return (HttpSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+			new Class<?>[] { HttpSession.class }, (proxy, m, args) -> {
+				switch (m.getName()) {
+					case "getId": return id;
+					case "getAttribute": return attributes.get(args[0]);
+					case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+					case "invalidate": session = null; return null;
+					default: return defaultValue(m.getReturnType());
+				}
+			});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) return false;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		return null;
+	}
+}
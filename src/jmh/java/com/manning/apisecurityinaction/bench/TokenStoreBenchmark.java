@@ -0,0 +1,134 @@
+package com.manning.apisecurityinaction.bench;
+
+import com.manning.apisecurityinaction.Schema;
+import com.manning.apisecurityinaction.token.*;
+import com.manning.apisecurityinaction.token.TokenStore.Token;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import org.dalesbred.Database;
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+
+// Measures create, read and a full create/read/revoke cycle for each token store that can issue tokens,
+// against an in-memory H2 database. MacaroonDatabase and Cookie are the stacks wired in Main.
+// Reads are of one token issued in setup, so they include any read cache. Add -prof gc for allocation.
+// See AccessTokenStoreBenchmark for the read-only OAuth2 stores.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenStoreBenchmark {
+	private static final String AUDIENCE = "https://localhost:4567";
+
+	@Param({ "MacaroonDatabase", "Cookie", "Database", "HmacDatabase", "Json", "HmacJson", "MacaroonJson",
+		"EncryptedJson", "SignedJwt", "EncryptedJwtDatabase", "EncryptedJwtDatabaseFilter", "JsonDenyList",
+		"SignedJwtDenyList" })
+	public String store;
+
+	private Database database;
+	private TokenStore tokenStore;
+	// Background refreshers and purgers to stop after the trial.
+	private final List<AutoCloseable> resources = new ArrayList<>();
+	private Request request;
+	private String tokenId;
+	private long sequence;
+
+	@Setup
+	public void setup() throws Exception {
+		database = Database.forUrlAndCredentials("jdbc:h2:mem:tokens;DB_CLOSE_DELAY=-1", "sa", "");
+		Schema.migrate(database);
+		database.update("INSERT INTO users(user_id, pw_hash) VALUES ('bench', 'unused')");
+
+		var keyBytes = new byte[32];
+		new SecureRandom().nextBytes(keyBytes);
+		var macKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+		var encKey = new SecretKeySpec(keyBytes, "AES");
+
+		var databaseStore = new DatabaseTokenStore(database);
+		resources.add(databaseStore);
+		switch (store) {
+			case "MacaroonDatabase": tokenStore = MacaroonTokenStore.wrap(databaseStore, macKey); break;
+			case "Cookie": tokenStore = new CookieTokenStore(); break;
+			case "Database": tokenStore = databaseStore; break;
+			case "HmacDatabase": tokenStore = HmacTokenStore.wrap(databaseStore, macKey); break;
+			case "Json": tokenStore = new JsonTokenStore(); break;
+			case "HmacJson": tokenStore = HmacTokenStore.wrap(new JsonTokenStore(), macKey); break;
+			case "MacaroonJson": tokenStore = MacaroonTokenStore.wrap(new JsonTokenStore(), macKey); break;
+			case "EncryptedJson": tokenStore = new EncryptedTokenStore(new JsonTokenStore(), encKey); break;
+			case "SignedJwt":
+				tokenStore = new SignedJwtTokenStore(new MACSigner(keyBytes), new MACVerifier(keyBytes), JWSAlgorithm.HS256,
+					AUDIENCE);
+				break;
+			case "EncryptedJwtDatabase": tokenStore = new EncryptedJwtTokenStore(encKey, databaseStore); break;
+			case "EncryptedJwtDatabaseFilter":
+				var revocationFilter = new RevocationFilter(database, 100_000, 0.01, Duration.ofSeconds(1), Duration.ofHours(1));
+				resources.add(revocationFilter);
+				tokenStore = new EncryptedJwtTokenStore(encKey, databaseStore, revocationFilter, Duration.ofHours(1));
+				break;
+			case "JsonDenyList":
+				var jsonDenyList = new DenyList(database, Duration.ofMinutes(5), Duration.ofSeconds(1), Duration.ofDays(1));
+				resources.add(jsonDenyList);
+				tokenStore = new JsonTokenStore(jsonDenyList);
+				break;
+			case "SignedJwtDenyList":
+				var jwtDenyList = new DenyList(database, Duration.ofMinutes(5), Duration.ofSeconds(1), Duration.ofDays(1));
+				resources.add(jwtDenyList);
+				tokenStore = new SignedJwtTokenStore(new MACSigner(keyBytes), new MACVerifier(keyBytes), JWSAlgorithm.HS256,
+					AUDIENCE, jwtDenyList);
+				break;
+			default: throw new IllegalArgumentException(store);
+		}
+
+		request = new StubRequest("GET", "/spaces/1/messages").build();
+		tokenId = tokenStore.create(request, newToken(0));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (var resource : resources) {
+			resource.close();
+		}
+		database.update("SHUTDOWN");
+	}
+
+	@Benchmark
+	public String create() {
+		return tokenStore.create(request, newToken(0));
+	}
+
+	@Benchmark
+	public Token read() {
+		return tokenStore.read(request, tokenId).orElseThrow();
+	}
+
+	@Benchmark
+	public Token createReadRevoke() {
+		// Stateless tokens with the same contents are the same token, so each must differ or revoking one
+		// would revoke the next.
+		var id = tokenStore.create(request, newToken(++sequence));
+		var token = tokenStore.read(request, id).orElseThrow();
+		tokenStore.revoke(request, id);
+		return token;
+	}
+
+	private static Token newToken(long sequence) {
+		var token = new Token(Instant.now().plus(10, ChronoUnit.MINUTES).plusSeconds(sequence), "bench");
+		token.attributes.put("path", "/spaces/1/messages");
+		token.attributes.put("perms", "r");
+		token.attributes.put("scope", "read_message list_messages");
+		return token;
+	}
+}
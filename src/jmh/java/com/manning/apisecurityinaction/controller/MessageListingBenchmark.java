@@ -0,0 +1,75 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.Schema;
+
+import org.dalesbred.Database;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Measures findMessages query latency against one space of N messages, alongside a second space of N messages,
+// with the index from migration V1 and with the msg_time index it replaced.
+// For larger spaces, e.g.: -p size=1000,100000,10000000
+// In the controller package to run the same query as SpaceController, without making it public.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageListingBenchmark {
+	private static final int PAGE_SIZE = 50;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public long size;
+
+	@Param({ "msg_space_time_idx", "msg_timestamp_idx" })
+	public String index;
+
+	private Database database;
+	private Instant since;
+
+	@Setup
+	public void setup() throws Exception {
+		database = Database.forUrlAndCredentials("jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1", "sa", "");
+		Schema.migrate(database);
+		populate();
+		if (index.equals("msg_timestamp_idx")) {
+			// Compare against the index from before migration V1.
+			database.update("DROP INDEX msg_space_time_idx; CREATE INDEX msg_timestamp_idx ON messages(msg_time);");
+		}
+		since = Instant.now().minus(1, ChronoUnit.DAYS);
+	}
+
+	@TearDown
+	public void tearDown() {
+		database.update("SHUTDOWN");
+	}
+
+	// Interleave messages from two spaces over the last day, so the space filter matters.
+	private void populate() {
+		database.update("INSERT INTO spaces(space_id, name, owner) VALUES (1, 'bench', 'bench'), (2, 'noise', 'bench')");
+		database.update("INSERT INTO messages(space_id, msg_id, author, msg_time, msg_text) " +
+			"SELECT MOD(X, 2) + 1, X, 'bench', DATEADD(SECOND, -MOD(X, 86400), CURRENT_TIMESTAMP), 'message ' || X " +
+			"FROM SYSTEM_RANGE(1, ?)", size * 2);
+	}
+
+	@Benchmark
+	public List<Long> firstPage() {
+		return page(since);
+	}
+
+	@Benchmark
+	public List<Long> middlePage() {
+		return page(since.plus(12, ChronoUnit.HOURS));
+	}
+
+	private List<Long> page(Instant cursorTime) {
+		return database.findAll(row -> row.getLong(2), SpaceController.FIND_MESSAGES_SQL,
+			1, cursorTime, cursorTime, 0, PAGE_SIZE + 1);
+	}
+}
@@ -0,0 +1,128 @@
+package com.manning.apisecurityinaction;
+
+import static spark.Spark.halt;
+import spark.Request;
+import spark.Response;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps the number of requests in flight, adapting the cap to observed latency (AIMD): it grows by one while
+// latency stays under target and the cap is in use, and shrinks multiplicatively once latency goes over target.
+// Requests over the cap are shed with 503 before they reach the database or scrypt.
+class ConcurrencyLimiter {
+	private static final long WINDOW_NANOS = Duration.ofMillis(100).toNanos();
+	private static final double BACKOFF = 0.9;
+	// Request attribute: nanoseconds a handler spent waiting on other servers, excluded from the latency signal.
+	static final String UPSTREAM_WAIT_NANOS = "upstream_wait_nanos";
+
+	// Share of the limit each route class may use, so expensive password checks are shed before cheap reads.
+	private static final Map<String, Double> HEADROOM = Map.of("read", 1.0, "write", 0.9, "auth", 0.5);
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatencyNanos;
+
+	private volatile int limit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong shed = new AtomicLong();
+
+	// Latency samples for the current window, added without locking. Only the rollover to the next window locks.
+	private final LongAdder windowSamples = new LongAdder();
+	private final LongAdder windowLatencyNanos = new LongAdder();
+	private final LongAccumulator windowMaxInFlight = new LongAccumulator(Math::max, 0);
+	private final ReentrantLock rollover = new ReentrantLock();
+	private volatile long windowStart = System.nanoTime();
+	private volatile long lastLatencyNanos;
+
+	ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Duration targetLatency) {
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.targetLatencyNanos = targetLatency.toNanos();
+	}
+
+	void acquire(Request request, Response response) {
+		var routeClass = RateLimitFilter.routeClass(request);
+		var allowed = Math.max(1, (int) (limit * HEADROOM.get(routeClass)));
+		while (true) {
+			var current = inFlight.get();
+			if (current >= allowed) {
+				shed.incrementAndGet();
+				response.header("Retry-After", "1");
+				halt(503);
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		request.attribute("concurrency_start", System.nanoTime());
+		request.attribute("concurrency_class", routeClass);
+	}
+
+	void release(Request request, Response response) {
+		Long start = request.attribute("concurrency_start");
+		if (start == null) {
+			return; // Shed, or never got as far as acquire.
+		}
+		request.attribute("concurrency_start", null);
+		var current = inFlight.getAndDecrement();
+		// Password hashing is slow by design, so only other routes feed the latency signal.
+		// Once scrypt saturates the CPU the reads slow down too, and the limit comes down anyway.
+		if (!"auth".equals(request.attribute("concurrency_class"))) {
+			// Time spent waiting on other servers (link previews) says nothing about our own load.
+			Long upstreamWait = request.attribute(UPSTREAM_WAIT_NANOS);
+			var latency = System.nanoTime() - start - (upstreamWait == null ? 0 : upstreamWait);
+			sample(Math.max(0, latency), current);
+		}
+	}
+
+	private void sample(long latencyNanos, int inFlightAtEnd) {
+		windowSamples.increment();
+		windowLatencyNanos.add(latencyNanos);
+		windowMaxInFlight.accumulate(inFlightAtEnd);
+
+		var now = System.nanoTime();
+		// Whoever loses the race to roll the window over just leaves its sample in the next one.
+		if (now - windowStart < WINDOW_NANOS || !rollover.tryLock()) {
+			return;
+		}
+		try {
+			if (now - windowStart < WINDOW_NANOS) {
+				return;
+			}
+			var samples = windowSamples.sumThenReset();
+			var latency = windowLatencyNanos.sumThenReset();
+			var maxInFlight = windowMaxInFlight.getThenReset();
+			windowStart = now;
+			if (samples == 0) {
+				return;
+			}
+			lastLatencyNanos = latency / samples;
+			if (lastLatencyNanos > targetLatencyNanos) {
+				limit = Math.max(minLimit, (int) (limit * BACKOFF));
+			}
+			else if (maxInFlight >= limit * BACKOFF) {
+				// Only grow when the current limit is actually being used.
+				limit = Math.min(maxLimit, limit + 1);
+			}
+		}
+		finally {
+			rollover.unlock();
+		}
+	}
+
+	JSONObject metrics() {
+		return new JSONObject()
+			.put("limit", limit)
+			.put("inFlight", inFlight.get())
+			.put("shed", shed.get())
+			.put("latencyMicros", lastLatencyNanos / 1_000);
+	}
+}
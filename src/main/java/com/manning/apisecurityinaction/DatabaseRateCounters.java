@@ -0,0 +1,70 @@
+package com.manning.apisecurityinaction;
+
+import org.dalesbred.Database;
+import org.dalesbred.DatabaseException;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed-window request counters in the rate_limits table, shared by all API pods.
+// Costs a database round trip per request, so only use it when limits must hold across pods.
+class DatabaseRateCounters implements RateLimitFilter.Store {
+	private static final long WINDOW_SECONDS = 10;
+
+	private final Database database;
+	private final AtomicLong lastPurgedWindow = new AtomicLong();
+
+	DatabaseRateCounters(Database database) {
+		this.database = database;
+	}
+
+	@Override
+	public long tryAcquire(String key, RateLimitFilter.Limit limit) {
+		var nowMillis = System.currentTimeMillis();
+		var window = nowMillis / TimeUnit.SECONDS.toMillis(WINDOW_SECONDS);
+		purgeOldWindows(window);
+
+		long hits;
+		try {
+			hits = countHit(key, window);
+		}
+		catch (DatabaseException e) {
+			// Concurrent first hits in a window can both take the insert branch, and all but one fail on the primary
+			// key. The row exists now, so a retry takes the update branch.
+			hits = countHit(key, window);
+		}
+
+		// Allow a window's worth of requests at the configured rate, plus the burst.
+		var allowance = (long) (limit.permitsPerSecond * WINDOW_SECONDS) + limit.burst;
+		if (hits <= allowance) {
+			return 0;
+		}
+		var windowEndMillis = (window + 1) * TimeUnit.SECONDS.toMillis(WINDOW_SECONDS);
+		return TimeUnit.MILLISECONDS.toNanos(windowEndMillis - nowMillis);
+	}
+
+	private long countHit(String key, long window) {
+		return database.withTransaction(tx -> {
+			database.update("MERGE INTO rate_limits r USING (VALUES (CAST(? AS VARCHAR(255)), CAST(? AS BIGINT))) s(limit_key, window_id) " +
+				"ON r.limit_key = s.limit_key AND r.window_id = s.window_id " +
+				"WHEN MATCHED THEN UPDATE SET hits = r.hits + 1 " +
+				"WHEN NOT MATCHED THEN INSERT (limit_key, window_id, hits) VALUES (s.limit_key, s.window_id, 1)",
+				key, window);
+			return database.findUniqueLong("SELECT hits FROM rate_limits WHERE limit_key = ? AND window_id = ?", key, window);
+		});
+	}
+
+	// The first request this pod sees in a new window clears out earlier windows.
+	private void purgeOldWindows(long window) {
+		var last = lastPurgedWindow.get();
+		if (window > last && lastPurgedWindow.compareAndSet(last, window)) {
+			database.update("DELETE FROM rate_limits WHERE window_id < ?", window);
+		}
+	}
+
+	@Override
+	public long size() {
+		return database.findUniqueLong("SELECT COUNT(*) FROM rate_limits");
+	}
+}
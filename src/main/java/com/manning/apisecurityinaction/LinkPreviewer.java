@@ -16,13 +16,51 @@ import java.net.URI;
 import java.net.InetAddress;
 import java.net.Inet6Address;
 import java.io.IOException;
+import org.jsoup.Connection;
 import org.jsoup.nodes.Document;
+import java.io.ByteArrayInputStream;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static org.jsoup.Connection.Method.GET;
+import java.util.Locale;
 import java.util.Set;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class LinkPreviewer {
 	private static final Logger logger = LoggerFactory.getLogger(LinkPreviewer.class);
 
+	// Cache previews for this long unless upstream Cache-Control says otherwise, and never longer than the max.
+	private static final Duration DEFAULT_TTL = Duration.ofMinutes(10);
+	private static final Duration MAX_TTL = Duration.ofHours(1);
+	private static final byte[] HEAD_END = "</head".getBytes(US_ASCII);
+	// Stop reading a page after this many bytes, whether or not the end of its <head> has been seen.
+	private static final int MAX_HEAD_BYTES = maxHeadBytes();
+
+	// Preview JSON keyed by normalized URL.
+	private static final Cache<String, CachedPreview> previewCache = CacheBuilder.newBuilder()
+		.maximumSize(10_000)
+		.expireAfterWrite(MAX_TTL)
+		.recordStats()
+		.build();
+	private static final AtomicLong coalescedWaiters = new AtomicLong();
+	private static final AtomicLong fetchCount = new AtomicLong();
+	private static final AtomicLong fetchNanos = new AtomicLong();
+	private static final AtomicLong maxFetchNanos = new AtomicLong();
+
+	// Each fetch allocates a buffer of this size, so fail at startup rather than on every fetch, or run out of memory.
+	private static int maxHeadBytes() {
+		var maxHeadBytes = Integer.getInteger("preview.maxHeadBytes", 64 * 1024);
+		if (maxHeadBytes < 1024 || maxHeadBytes > 16 * 1024 * 1024) {
+			throw new IllegalArgumentException("preview.maxHeadBytes must be between 1 KiB and 16 MiB: " + maxHeadBytes);
+		}
+		return maxHeadBytes;
+	}
+
 	private static boolean isBlockedAddress(String uri) throws UnknownHostException {
 		var host = URI.create(uri).getHost();
 		for (var ipAddr : InetAddress.getAllByName(host)) {
@@ -39,11 +77,11 @@ public class LinkPreviewer {
 			&& (ipAddr.getAddress()[1] & 0xFF) == 0x00;
 	}
 
-	private static Document fetch(String url) throws IOException {
-		Document doc = null;
+	private static Connection.Response fetch(String url) throws IOException {
+		Connection.Response result = null;
 		int retries = 0;
 		// Loop until URL resolves to a document. Limit number of redirects.
-		while (doc == null && retries++ < 9) {
+		while (result == null && retries++ < 9) {
 			if (isBlockedAddress(url)) {
 				throw new IllegalArgumentException("URL refers to local/private address");
 			}
@@ -53,11 +91,165 @@ public class LinkPreviewer {
 				url = response.header("Location");
 			}
 			else {
-				doc = response.parse();
+				result = response;
+			}
+		}
+		if (result == null) throw new IOException("too many redirects");
+		return result;
+	}
+
+	private static CachedPreview fetchPreview(String url) throws IOException {
+		var response = fetch(url);
+		var doc = parseHead(response);
+		// Extract desired metadata properties from HTML.
+		var title = doc.title();
+		var desc = doc.head().selectFirst("meta[property='og:description']");
+		var img = doc.head().selectFirst("meta[property='og:image']");
+
+		var json = new JSONObject()
+			.put("url", doc.location())
+			.putOpt("title", title)
+			.putOpt("description", desc == null ? null : desc.attr("content"))
+			.putOpt("image", img == null ? null : img.attr("content"));
+		return new CachedPreview(json, cacheTtl(response.header("Cache-Control")));
+	}
+
+	// Read the response incrementally and parse only up to </head>, so memory per fetch stays bounded.
+	private static Document parseHead(Connection.Response response) throws IOException {
+		var head = new byte[MAX_HEAD_BYTES];
+		var length = 0;
+		try (var in = response.bodyStream()) {
+			int read;
+			while (length < head.length && (read = in.read(head, length, Math.min(4096, head.length - length))) != -1) {
+				// Search just the new bytes, plus enough before them to catch a tag split across reads.
+				var from = Math.max(0, length - HEAD_END.length);
+				length += read;
+				if (indexOfHeadEnd(head, from, length) != -1) {
+					break;
+				}
+			}
+		}
+		// A null charset lets Jsoup detect it from a BOM or <meta charset>.
+		return Jsoup.parse(new ByteArrayInputStream(head, 0, length), response.charset(), response.url().toExternalForm());
+	}
+
+	private static int indexOfHeadEnd(byte[] bytes, int from, int to) {
+		outer:
+		for (int i = from; i <= to - HEAD_END.length; i++) {
+			for (int j = 0; j < HEAD_END.length; j++) {
+				// Tag names are case-insensitive ASCII.
+				if (Character.toLowerCase(bytes[i + j]) != HEAD_END[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	// Concurrent requests for the same URL share one upstream fetch: the cache runs one loader per key and makes
+	// other callers wait for it. An entry past its own (Cache-Control) TTL is replaced by a new fetch.
+	private static JSONObject preview(String url) throws Exception {
+		var key = normalize(url);
+		var start = System.nanoTime();
+		while (true) {
+			var fetched = new boolean[1];
+			CachedPreview preview;
+			try {
+				preview = previewCache.get(key, () -> {
+					fetched[0] = true;
+					return timedFetchPreview(key);
+				});
 			}
+			catch (ExecutionException | UncheckedExecutionException e) {
+				// Rethrow original exception so it maps to the same status code.
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+			var fetchedForThisRequest = preview.fetchedSince(start);
+			if (preview.isFresh() || fetchedForThisRequest) {
+				if (fetchedForThisRequest && !fetched[0]) {
+					coalescedWaiters.incrementAndGet();
+				}
+				if (!preview.isFresh()) {
+					// Not cacheable, e.g. Cache-Control: no-store. Only the requests that waited for it share it.
+					previewCache.asMap().remove(key, preview);
+				}
+				return preview.json;
+			}
+			previewCache.asMap().remove(key, preview);
 		}
-		if (doc == null) throw new IOException("too many redirects");
-		return doc;
+	}
+
+	private static CachedPreview timedFetchPreview(String url) throws IOException {
+		var start = System.nanoTime();
+		var preview = fetchPreview(url);
+		var elapsed = System.nanoTime() - start;
+		fetchCount.incrementAndGet();
+		fetchNanos.addAndGet(elapsed);
+		maxFetchNanos.accumulateAndGet(elapsed, Math::max);
+		return preview;
+	}
+
+	// Scheme and host are case-insensitive, and the fragment is never sent to the server.
+	// Userinfo, path and query are case-sensitive, so are kept as they are.
+	private static String normalize(String url) {
+		var uri = URI.create(url).normalize();
+		if (uri.getScheme() == null || uri.getHost() == null) {
+			throw new IllegalArgumentException("invalid URL");
+		}
+		var path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+		return uri.getScheme().toLowerCase(Locale.ROOT) + "://"
+			+ (uri.getRawUserInfo() == null ? "" : uri.getRawUserInfo() + "@")
+			+ uri.getHost().toLowerCase(Locale.ROOT)
+			+ (uri.getPort() == -1 ? "" : ":" + uri.getPort())
+			+ path
+			+ (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+	}
+
+	// We are a shared cache, so honour s-maxage over max-age and never cache private responses.
+	private static Duration cacheTtl(String cacheControl) {
+		if (cacheControl == null) {
+			return DEFAULT_TTL;
+		}
+		Duration maxAge = null;
+		Duration sharedMaxAge = null;
+		for (var directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+			var parts = directive.split("=", 2);
+			var name = parts[0].trim();
+			// Includes the qualified forms, e.g. private="set-cookie", as we don't track which fields they name.
+			if (name.equals("no-store") || name.equals("no-cache") || name.equals("private")) {
+				return Duration.ZERO;
+			}
+			if (parts.length < 2) {
+				continue;
+			}
+			var value = parts[1].trim().replace("\"", "");
+			try {
+				if (name.equals("max-age")) {
+					maxAge = Duration.ofSeconds(Long.parseLong(value));
+				}
+				else if (name.equals("s-maxage")) {
+					sharedMaxAge = Duration.ofSeconds(Long.parseLong(value));
+				}
+			}
+			catch (NumberFormatException e) { // Ignore malformed directives.
+			}
+		}
+		var ttl = sharedMaxAge != null ? sharedMaxAge : maxAge != null ? maxAge : DEFAULT_TTL;
+		return ttl.isNegative() ? Duration.ZERO : ttl.compareTo(MAX_TTL) > 0 ? MAX_TTL : ttl;
+	}
+
+	private static JSONObject metrics() {
+		var stats = previewCache.stats();
+		var fetches = fetchCount.get();
+		return new JSONObject()
+			.put("hits", stats.hitCount())
+			.put("misses", stats.missCount())
+			.put("hitRate", stats.hitRate())
+			.put("coalescedWaiters", coalescedWaiters.get())
+			.put("fetches", fetches)
+			.put("meanFetchMillis", fetches == 0 ? 0 : fetchNanos.get() / fetches / 1_000_000)
+			.put("maxFetchMillis", maxFetchNanos.get() / 1_000_000);
 	}
 
 	public static void main(String...args) {
@@ -78,20 +270,8 @@ public class LinkPreviewer {
 		afterAfter((request, response) -> {
 			response.type("application/json; charset=utf-8");
 		});
-		get("/preview", (request, response) -> {
-			var url = request.queryParams("url");
-			var doc = fetch(url);
-			// Extract desired metadata properties from HTML.
-			var title = doc.title();
-			var desc = doc.head().selectFirst("meta[property='og:description']");
-			var img = doc.head().selectFirst("meta[property='og:image']");
-
-			return new JSONObject()
-				.put("url", doc.location())
-				.putOpt("title", title)
-				.putOpt("description", desc == null ? null : desc.attr("content"))
-				.putOpt("image", img == null ? null : img.attr("content"));
-		});
+		get("/preview", (request, response) -> preview(request.queryParams("url")));
+		get("/metrics", (request, response) -> metrics());
 
 		// Return appropriate HTTP status codes if jsoup raises an exception.
 		exception(IllegalArgumentException.class, handleException(400));
@@ -100,6 +280,26 @@ public class LinkPreviewer {
 		exception(UnknownHostException.class, handleException(404));
 	}
 
+	private static class CachedPreview {
+		private final JSONObject json;
+		private final long fetchedAt;
+		private final long expiresAt;
+
+		private CachedPreview(JSONObject json, Duration ttl) {
+			this.json = json;
+			this.fetchedAt = System.nanoTime();
+			this.expiresAt = fetchedAt + ttl.toNanos();
+		}
+
+		private boolean isFresh() {
+			return System.nanoTime() - expiresAt < 0;
+		}
+
+		private boolean fetchedSince(long nanoTime) {
+			return fetchedAt - nanoTime >= 0;
+		}
+	}
+
 	private static <T extends Exception> ExceptionHandler<T> handleException(int status) {
 		return (ex, request, response) -> {
 			logger.error("Caught error {} - returning status {}", ex, status);
@@ -10,10 +10,12 @@ import static spark.Spark.*;
 import javax.crypto.SecretKey;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.util.Map;
 import java.util.Set;
 import java.security.KeyStore;
 import java.io.FileInputStream;
 import java.net.URI;
+import java.time.Duration;
 
 import org.dalesbred.*;
 import org.h2.jdbcx.*;
@@ -25,7 +27,6 @@ import spark.Response;
 
 import software.pando.crypto.nacl.SecretBox;
 
-import com.google.common.util.concurrent.RateLimiter;
 
 public class Main {
 	public static void main(String... args) throws Exception {
@@ -46,7 +47,7 @@ public class Main {
 		var jdbcUrl = "jdbc:h2:tcp://natter-database-service:9092/mem:natter";
 		var datasource = JdbcConnectionPool.create(jdbcUrl, dbUsername, dbPassword);
 		var database = Database.forDataSource(datasource);
-		createTables(database);
+		Schema.migrate(database);
 		// Implement least privilege with natter_api_user.
 		datasource = JdbcConnectionPool.create(jdbcUrl, "natter_api_user", "password");
 		database = Database.forDataSource(datasource);
@@ -62,25 +63,44 @@ public class Main {
 		var encKey = HKDF.expand(macKey, "token-encryption-key", 32, "AES");
 
 		// Use DatabaseTokenStore because it creates short tokens (and therefore short capability URIs).
-		var capController = new CapabilityController(MacaroonTokenStore.wrap(new DatabaseTokenStore(database), macKey));
-		var spaceController = new SpaceController(database, capController);
-
-		var userController = new UserController(database);
+		// Keep writing JSON token attributes until every pod reads the packed ones, then set this to false.
+		var writeJsonAttributes = Boolean.parseBoolean(System.getProperty("tokens.writeJsonAttributes", "true"));
+		var databaseTokenStore = new DatabaseTokenStore(database, writeJsonAttributes);
+		// Stop purging expired tokens on shutdown.
+		Runtime.getRuntime().addShutdownHook(new Thread(databaseTokenStore::close));
+		var capController = new CapabilityController(MacaroonTokenStore.wrap(databaseTokenStore, macKey));
+		// Roles cached per (space, user). Membership changes on other pods show up within a second.
+		var permissionCache = new PermissionCache(database, Duration.ofSeconds(1));
+		var spaceController = new SpaceController(database, capController, permissionCache);
+
+		var userController = new UserController(database, permissionCache);
 		// Wire up /users post to register a new user.
 		post("/users", userController::registerUser);
 
 		SecureTokenStore tokenStore = new CookieTokenStore();
 		var tokenController = new TokenController(tokenStore);
 
-		// Implement basic rate-limiting.
-		// See https://guava.dev/releases/29.0-jre/api/docs/com/google/common/util/concurrent/RateLimiter.html.
-		var rateLimiter = RateLimiter.create(2.0d);
-		before((request, response) -> {
-			if (!rateLimiter.tryAcquire()) {
-				response.header("Retry-After", "2");
-				halt(429);
-			}
-		});
+		// Rate-limit each client separately, per route class, rather than with one global limit.
+		var rateLimits = Map.of(
+			"auth", new RateLimitFilter.Limit(1, 5),
+			"write", new RateLimitFilter.Limit(5, 10),
+			"read", new RateLimitFilter.Limit(20, 40));
+		RateLimitFilter.Store rateLimitStore = new TokenBuckets(100_000, Duration.ofMinutes(1));
+		// Or share counters between API pods through the database.
+//		RateLimitFilter.Store rateLimitStore = new DatabaseRateCounters(database);
+		// Limit by client IP before authentication, so one address can't flood the API without credentials.
+		// This doesn't protect the scrypt threads: HTTP Basic runs scrypt on every route class, and that pool sheds
+		// its own load with 503 once its queue is full.
+		// Behind the ingress the peer address is the ingress itself, so take the client from X-Forwarded-For,
+		// trusting only the hops appended by our own proxies.
+		var trustedProxies = Integer.getInteger("ratelimit.trustedProxies", 1);
+		var ipRateLimit = new RateLimitFilter("ip", RateLimitFilter.forwardedFor(trustedProxies), rateLimits, rateLimitStore);
+		before(ipRateLimit);
+
+		// Shed load with 503 once the server's own latency degrades, before requests reach the database or scrypt.
+		var concurrencyLimiter = new ConcurrencyLimiter(20, 4, 200, Duration.ofMillis(250));
+		before(concurrencyLimiter::acquire);
+		afterAfter(concurrencyLimiter::release);
 
 		// Define valid hostnames for API.
 		var expectedHostNames = Set.of(
@@ -102,15 +122,31 @@ public class Main {
 		// Authenticate users before all API calls.
 		before(userController::authenticate); // HTTP Basic.
 		before(tokenController::validateToken); // Or session cookies.
+		// Then by authenticated subject, so one user can't exceed their limits by spreading requests over many IPs.
+		var subjectRateLimit = new RateLimitFilter("subject", request -> request.attribute("subject"), rateLimits, rateLimitStore);
+		before(subjectRateLimit);
 
 		// Perform audit logging after authn (but before authz).
-		var auditController = new AuditController(database);
+		// Write audit events in batches from a background thread. Block callers rather than lose events if the queue fills.
+		var auditLogWriter = new AuditLogWriter(database, 100, Duration.ofMillis(50), 10_000,
+			AuditLogWriter.OverflowPolicy.BLOCK, null);
+		// Flush queued audit events on shutdown, once the server has stopped taking requests that would add more.
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stop();
+			awaitStop();
+			auditLogWriter.close();
+		}));
+		var auditController = new AuditController(database, auditLogWriter);
 		before(auditController::auditRequestStart);
 		afterAfter(auditController::auditRequestEnd);
 
 		// Apply ABAC via Drools rule file before other access control rules.
 //		var droolsController = new DroolsAccessController();
 //		before("/*", droolsController::enforcePolicy);
+		// Or evaluate the same rules compiled from accessrules.policy, without Drools.
+		// With a cache of up to 10,000 decisions, keyed on just the attributes the rules use.
+//		var policyController = new PolicyAccessController(ABACPolicy.load("/accessrules.policy"), 10_000);
+//		before("/*", policyController::enforcePolicy);
 
 		// Require authentication for /sessions endpoint.
 		before("/sessions", userController::requireAuthentication);
@@ -166,6 +202,19 @@ public class Main {
 		// Wire up /logs get to show audit logs.
 		get("/logs", auditController::readAuditLog);
 
+		// Wire up /metrics get to show cache and other runtime metrics.
+		var metricsController = new MetricsController();
+		metricsController.register("tokenCache", () -> MetricsController.toJson(databaseTokenStore.cacheStats()));
+		metricsController.register("tokenPurge", databaseTokenStore::purgeMetrics);
+		metricsController.register("auditLog", auditLogWriter::metrics);
+		metricsController.register("users", userController::metrics);
+		metricsController.register("permissions", permissionCache::metrics);
+		metricsController.register("ipRateLimit", ipRateLimit::metrics);
+		metricsController.register("subjectRateLimit", subjectRateLimit::metrics);
+		metricsController.register("concurrency", concurrencyLimiter::metrics);
+//		metricsController.register("abacDecisions", () -> MetricsController.toJson(policyController.cacheStats()));
+		get("/metrics", metricsController::readMetrics);
+
 		// Avoid leaking server information in header. Is there value in a misleading value here?
 		afterAfter((request, response) -> response.header("Server", ""));
 		// Disable reflected XSS protection in web browser.
@@ -201,12 +250,6 @@ public class Main {
 		exception(EmptyResultException.class, (e, request, response) -> response.status(404));
 	}
 
-	private static void createTables(Database database) throws Exception {
-		var path = Paths.get(
-			Main.class.getResource("/schema.sql").toURI());
-		database.update(Files.readString(path));
-	}
-
 	private static void badRequest(Exception exception, Request request, Response response) {
 		response.status(400);
 		response.body("{\"error\": \"" + exception.getMessage() + "\"}");
@@ -0,0 +1,104 @@
+package com.manning.apisecurityinaction;
+
+import static spark.Spark.halt;
+import spark.Request;
+import spark.Response;
+import spark.Filter;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+class RateLimitFilter implements Filter {
+	private final String name;
+	private final Function<Request, String> clientKey;
+	private final Map<String, Limit> limits;
+	private final Store store;
+	private final AtomicLong rejected = new AtomicLong();
+
+	// Limits are per route class (see routeClass), applied separately to each client key.
+	// The name keeps keys apart when several filters share a store.
+	RateLimitFilter(String name, Function<Request, String> clientKey, Map<String, Limit> limits, Store store) {
+		this.name = name;
+		this.clientKey = clientKey;
+		this.limits = limits;
+		this.store = store;
+	}
+
+	@Override
+	public void handle(Request request, Response response) {
+		var client = clientKey.apply(request);
+		if (client == null) {
+			return; // E.g. no authenticated subject to limit by.
+		}
+		var routeClass = routeClass(request);
+		var limit = limits.get(routeClass);
+		if (limit == null) {
+			return;
+		}
+
+		var waitNanos = store.tryAcquire(name + ":" + routeClass + ":" + client, limit);
+		if (waitNanos > 0) {
+			rejected.incrementAndGet();
+			// Tell the client when the next request would be accepted, rounded up to whole seconds.
+			var retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+			response.header("Retry-After", Long.toString(retryAfter));
+			halt(429);
+		}
+	}
+
+	// The client address as seen by the outermost of trustedProxies reverse proxies, each of which appends the
+	// address it received the request from to X-Forwarded-For. Entries further left are supplied by the client and
+	// can't be trusted. Requests that didn't come through the proxies (no header) fall back to the peer address.
+	static Function<Request, String> forwardedFor(int trustedProxies) {
+		if (trustedProxies < 1) {
+			return Request::ip;
+		}
+		return request -> {
+			var header = request.headers("X-Forwarded-For");
+			if (header == null || header.isBlank()) {
+				return request.ip();
+			}
+			var hops = header.split(",");
+			return hops[Math.max(0, hops.length - trustedProxies)].trim();
+		};
+	}
+
+	// Password checks on /users and /sessions are far more expensive than reads, so limit them separately.
+	static String routeClass(Request request) {
+		var path = request.pathInfo();
+		if (path.startsWith("/users") || path.startsWith("/sessions")) {
+			return "auth";
+		}
+		return "GET".equals(request.requestMethod()) ? "read" : "write";
+	}
+
+	JSONObject metrics() {
+		return new JSONObject()
+			.put("rejected", rejected.get())
+			.put("trackedKeys", store.size());
+	}
+
+	static class Limit {
+		final double permitsPerSecond;
+		final int burst;
+
+		Limit(double permitsPerSecond, int burst) {
+			this.permitsPerSecond = permitsPerSecond;
+			this.burst = burst;
+		}
+
+		long emissionNanos() {
+			return (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+		}
+	}
+
+	interface Store {
+		// Take one permit for the key. Returns 0 if allowed, otherwise nanoseconds until a permit is available.
+		long tryAcquire(String key, Limit limit);
+
+		long size();
+	}
+}
@@ -0,0 +1,64 @@
+package com.manning.apisecurityinaction;
+
+import org.dalesbred.Database;
+import org.dalesbred.DatabaseException;
+
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class Schema {
+	// Create the schema in a new database, then apply each migrations/V<n>.sql not yet recorded in schema_version.
+	// schema.sql is the schema as it was before migrations, so a database created by it then, which has no
+	// schema_version, is at version 0 just like a new one.
+	// Nothing locks out a second pod migrating at the same time, so both may run the same script: scripts must be
+	// idempotent (IF NOT EXISTS etc.). The slower pod then fails to record the version, on the schema_version primary
+	// key, and carries on once it sees the version recorded by the other.
+	public static void migrate(Database database) throws IOException {
+		if (!tableExists(database, "SCHEMA_VERSION")) {
+			if (!tableExists(database, "USERS")) {
+				try {
+					database.update(read("/schema.sql"));
+				}
+				catch (DatabaseException e) {
+					if (!tableExists(database, "USERS")) throw e;
+				}
+			}
+			database.update("CREATE TABLE IF NOT EXISTS schema_version(" +
+				"version INT PRIMARY KEY, applied_at TIMESTAMP NOT NULL)");
+		}
+
+		for (int next = currentVersion(database) + 1; ; next++) {
+			var script = read("/migrations/V" + next + ".sql");
+			if (script == null) {
+				break;
+			}
+			var migrationVersion = next;
+			try {
+				database.withVoidTransaction(tx -> {
+					// Skip a migration another pod has finished since the last check.
+					if (currentVersion(database) >= migrationVersion) return;
+					database.update(script);
+					database.update("INSERT INTO schema_version(version, applied_at) VALUES (?, current_timestamp)", migrationVersion);
+				});
+			}
+			catch (DatabaseException e) {
+				if (currentVersion(database) < migrationVersion) throw e;
+			}
+		}
+	}
+
+	private static boolean tableExists(Database database, String table) {
+		return database.findUniqueInt("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES " +
+			"WHERE TABLE_SCHEMA = CURRENT_SCHEMA AND TABLE_NAME = ?", table) > 0;
+	}
+
+	private static int currentVersion(Database database) {
+		return database.findUniqueInt("SELECT COALESCE(MAX(version), 0) FROM schema_version");
+	}
+
+	private static String read(String resource) throws IOException {
+		try (var in = Schema.class.getResourceAsStream(resource)) {
+			return in == null ? null : new String(in.readAllBytes(), UTF_8);
+		}
+	}
+}
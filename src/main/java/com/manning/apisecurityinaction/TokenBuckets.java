@@ -0,0 +1,53 @@
+package com.manning.apisecurityinaction;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+// In-process token buckets, one lock-free AtomicLong per key, using the generic cell rate algorithm (GCRA).
+// Each bucket stores its "theoretical arrival time": when it would be full again if no more requests arrived.
+class TokenBuckets implements RateLimitFilter.Store {
+	private final Cache<String, AtomicLong> buckets;
+
+	// Idle buckets are dropped after idleTimeout, which must be at least as long as the slowest bucket takes to refill.
+	TokenBuckets(long maxKeys, Duration idleTimeout) {
+		this.buckets = CacheBuilder.newBuilder()
+			.maximumSize(maxKeys)
+			.expireAfterAccess(idleTimeout)
+			.build();
+	}
+
+	@Override
+	public long tryAcquire(String key, RateLimitFilter.Limit limit) {
+		AtomicLong bucket;
+		try {
+			bucket = buckets.get(key, () -> new AtomicLong(Long.MIN_VALUE));
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+
+		var emission = limit.emissionNanos();
+		var tolerance = emission * (limit.burst - 1);
+		while (true) {
+			var now = System.nanoTime();
+			var stored = bucket.get();
+			var arrival = stored == Long.MIN_VALUE || stored - now < 0 ? now : stored;
+			var wait = arrival - now - tolerance;
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(stored, arrival + emission)) {
+				return 0;
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return buckets.size();
+	}
+}
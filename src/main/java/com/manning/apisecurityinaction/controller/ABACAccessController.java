@@ -4,11 +4,23 @@ import spark.Request;
 import spark.Response;
 import static spark.Spark.halt;
 
+import java.time.Clock;
 import java.time.LocalTime;
 import java.util.Map;
 import java.util.HashMap;
 
 public abstract class ABACAccessController {
+	private final Clock clock;
+
+	protected ABACAccessController() {
+		this(Clock.systemDefaultZone());
+	}
+
+	// A fixed clock lets policies be checked at chosen times of day.
+	protected ABACAccessController(Clock clock) {
+		this.clock = clock;
+	}
+
 	public void enforcePolicy(Request request, Response response) {
 		var subjectAttrs = new HashMap<String, Object>();
 		subjectAttrs.put("user", request.attribute("subject"));
@@ -22,7 +34,7 @@ public abstract class ABACAccessController {
 		actionAttrs.put("method", request.requestMethod());
 
 		var envAttrs = new HashMap<String, Object>();
-		envAttrs.put("timeOfDay", LocalTime.now());
+		envAttrs.put("timeOfDay", LocalTime.now(clock));
 		envAttrs.put("ip", request.ip());
 
 		var permitted = checkPermitted(subjectAttrs, resourceAttrs, actionAttrs, envAttrs);
@@ -51,5 +63,9 @@ public abstract class ABACAccessController {
 		boolean isPermitted() {
 			return permit;
 		}
+
+		void reset() {
+			permit = true;
+		}
 	}
 }
@@ -0,0 +1,411 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// A compiled ABAC policy: "deny" rules over subject, resource, action and env attributes, in a small declarative format.
+//
+//   # Comments run to the end of the line.
+//   deny "moderation outside office hours"
+//     when action.method == "DELETE" and (env.timeOfDay.hour < 9 or env.timeOfDay.hour > 17)
+//
+// Conditions combine comparisons (== != < <= > >=) and "contains" with and, or, not and parentheses.
+// As with the Drools rules, a request is permitted unless some rule denies it.
+// Rules that require an exact action or resource attribute value are indexed by it, so only candidate rules are evaluated.
+public final class ABACPolicy {
+	private final int ruleCount;
+	private final List<Condition> unindexed;
+	private final List<Index> indexes;
+	private final Set<String> referencedAttributes;
+	private final Attribute[] keyAttributes;
+
+	private ABACPolicy(List<Condition> rules) {
+		this.ruleCount = rules.size();
+		var unindexed = new ArrayList<Condition>();
+		var indexes = new LinkedHashMap<String, Index>();
+		var referenced = new TreeMap<String, Attribute>();
+		for (var rule : rules) {
+			rule.collectAttributes(referenced);
+			var key = rule.indexKey();
+			if (key == null) {
+				unindexed.add(rule);
+			}
+			else {
+				indexes.computeIfAbsent(key.attribute.path, path -> new Index(key.attribute))
+					.rules.computeIfAbsent(key.value, value -> new ArrayList<>()).add(rule);
+			}
+		}
+		this.unindexed = unindexed;
+		this.indexes = new ArrayList<>(indexes.values());
+		this.referencedAttributes = Collections.unmodifiableSet(referenced.keySet());
+		this.keyAttributes = referenced.values().toArray(new Attribute[0]);
+	}
+
+	public static ABACPolicy parse(String source) {
+		return new ABACPolicy(new Parser(source).parseRules());
+	}
+
+	// Load a policy from the classpath, e.g. "/accessrules.policy".
+	public static ABACPolicy load(String resource) {
+		try (var in = ABACPolicy.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IllegalArgumentException("policy not found: " + resource);
+			}
+			return parse(new String(in.readAllBytes(), UTF_8));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int ruleCount() {
+		return ruleCount;
+	}
+
+	// Attribute paths the rules read, e.g. "action.method" or "env.timeOfDay.hour".
+	public Set<String> referencedAttributes() {
+		return referencedAttributes;
+	}
+
+	// The values of just the referenced attributes, which together determine the decision.
+	// Time of day is only read at the granularity the rules use, e.g. env.timeOfDay.hour, so keys repeat within that bucket.
+	List<Object> decisionKey(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+		var values = new Object[keyAttributes.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = keyAttributes[i].get(subject, resource, action, env);
+		}
+		return Arrays.asList(values);
+	}
+
+	boolean permits(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+		for (var rule : unindexed) {
+			if (rule.test(subject, resource, action, env)) return false;
+		}
+		for (var index : indexes) {
+			var candidates = index.rules.get(index.attribute.get(subject, resource, action, env));
+			if (candidates == null) continue;
+			for (var rule : candidates) {
+				if (rule.test(subject, resource, action, env)) return false;
+			}
+		}
+		return true;
+	}
+
+	private static class Index {
+		private final Attribute attribute;
+		private final Map<Object, List<Condition>> rules = new HashMap<>();
+
+		Index(Attribute attribute) {
+			this.attribute = attribute;
+		}
+	}
+
+	private static class IndexKey {
+		private final Attribute attribute;
+		private final Object value;
+
+		IndexKey(Attribute attribute, Object value) {
+			this.attribute = attribute;
+			this.value = value;
+		}
+	}
+
+	private interface Condition {
+		boolean test(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env);
+
+		void collectAttributes(Map<String, Attribute> attributes);
+
+		// An exact action or resource attribute value this condition requires, if any.
+		default IndexKey indexKey() {
+			return null;
+		}
+	}
+
+	// A reference like resource.space or env.timeOfDay.hour, bound to its category map when compiled.
+	private static class Attribute {
+		private final String path;
+		private final int category;
+		private final String name;
+		private final String property;
+
+		Attribute(String path, int line) {
+			var parts = path.split("\\.");
+			if (parts.length < 2 || parts.length > 3) {
+				throw new IllegalArgumentException("policy line " + line + ": invalid attribute " + path);
+			}
+			this.path = path;
+			this.category = List.of("subject", "resource", "action", "env").indexOf(parts[0]);
+			if (category == -1) {
+				throw new IllegalArgumentException("policy line " + line + ": unknown attribute category " + parts[0]);
+			}
+			this.name = parts[1];
+			this.property = parts.length == 3 ? parts[2] : null;
+			if (property != null && !Set.of("hour", "minute").contains(property)) {
+				throw new IllegalArgumentException("policy line " + line + ": unknown property " + property);
+			}
+		}
+
+		Object get(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			Map<String, Object> attrs;
+			switch (category) {
+				case 0: attrs = subject; break;
+				case 1: attrs = resource; break;
+				case 2: attrs = action; break;
+				default: attrs = env;
+			}
+			var value = attrs.get(name);
+			if (property == null) return value;
+			if (!(value instanceof LocalTime)) return null;
+			var time = (LocalTime) value;
+			return "hour".equals(property) ? time.getHour() : time.getMinute();
+		}
+	}
+
+	private static class Comparison implements Condition {
+		private final Attribute attribute;
+		private final String op;
+		private final Object literal;
+
+		Comparison(Attribute attribute, String op, Object literal) {
+			this.attribute = attribute;
+			this.op = op;
+			this.literal = literal;
+		}
+
+		@Override
+		public boolean test(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			var value = attribute.get(subject, resource, action, env);
+			switch (op) {
+				case "==": return equal(value, literal);
+				case "!=": return !equal(value, literal);
+				case "contains": return value instanceof Collection && ((Collection<?>) value).contains(literal);
+			}
+			if (!(value instanceof Number)) {
+				return false;
+			}
+			var cmp = Long.compare(((Number) value).longValue(), (Long) literal);
+			switch (op) {
+				case "<": return cmp < 0;
+				case "<=": return cmp <= 0;
+				case ">": return cmp > 0;
+				default: return cmp >= 0;
+			}
+		}
+
+		private static boolean equal(Object value, Object literal) {
+			if (value instanceof Number && literal instanceof Long) {
+				return ((Number) value).longValue() == (Long) literal;
+			}
+			return literal.equals(value);
+		}
+
+		@Override
+		public void collectAttributes(Map<String, Attribute> attributes) {
+			attributes.putIfAbsent(attribute.path, attribute);
+		}
+
+		@Override
+		public IndexKey indexKey() {
+			var indexable = attribute.category == 1 || attribute.category == 2;
+			return indexable && "==".equals(op) && literal instanceof String ? new IndexKey(attribute, literal) : null;
+		}
+	}
+
+	private static class And implements Condition {
+		private final Condition[] conditions;
+
+		And(List<Condition> conditions) {
+			this.conditions = conditions.toArray(new Condition[0]);
+		}
+
+		@Override
+		public boolean test(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			for (var condition : conditions) {
+				if (!condition.test(subject, resource, action, env)) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void collectAttributes(Map<String, Attribute> attributes) {
+			for (var condition : conditions) condition.collectAttributes(attributes);
+		}
+
+		@Override
+		public IndexKey indexKey() {
+			// Prefer an action attribute, as the most selective.
+			IndexKey found = null;
+			for (var condition : conditions) {
+				var key = condition.indexKey();
+				if (key != null && (found == null || key.attribute.category == 2)) found = key;
+			}
+			return found;
+		}
+	}
+
+	private static class Or implements Condition {
+		private final Condition[] conditions;
+
+		Or(List<Condition> conditions) {
+			this.conditions = conditions.toArray(new Condition[0]);
+		}
+
+		@Override
+		public boolean test(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			for (var condition : conditions) {
+				if (condition.test(subject, resource, action, env)) return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void collectAttributes(Map<String, Attribute> attributes) {
+			for (var condition : conditions) condition.collectAttributes(attributes);
+		}
+	}
+
+	private static class Not implements Condition {
+		private final Condition condition;
+
+		Not(Condition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		public boolean test(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			return !condition.test(subject, resource, action, env);
+		}
+
+		@Override
+		public void collectAttributes(Map<String, Attribute> attributes) {
+			condition.collectAttributes(attributes);
+		}
+	}
+
+	// Recursive descent over: rule := deny STRING when or; or := and (or and)*; and := unary (and unary)*;
+	// unary := not unary | ( or ) | attribute op literal.
+	private static class Parser {
+		private final List<String> tokens = new ArrayList<>();
+		private final List<Integer> lines = new ArrayList<>();
+		private int pos;
+
+		Parser(String source) {
+			var line = 1;
+			for (int i = 0; i < source.length(); ) {
+				var c = source.charAt(i);
+				if (c == '\n') { line++; i++; }
+				else if (Character.isWhitespace(c)) { i++; }
+				else if (c == '#') { while (i < source.length() && source.charAt(i) != '\n') i++; }
+				else {
+					var start = i;
+					if (c == '"') {
+						i = source.indexOf('"', i + 1);
+						if (i == -1) throw new IllegalArgumentException("policy line " + line + ": unterminated string");
+						i++;
+					}
+					else if ("=!<>".indexOf(c) >= 0) {
+						i += i + 1 < source.length() && source.charAt(i + 1) == '=' ? 2 : 1;
+					}
+					else if (c == '(' || c == ')') {
+						i++;
+					}
+					else {
+						while (i < source.length() && (Character.isLetterOrDigit(source.charAt(i))
+							|| source.charAt(i) == '.' || source.charAt(i) == '_' || source.charAt(i) == '-')) i++;
+						if (i == start) throw new IllegalArgumentException("policy line " + line + ": unexpected " + c);
+					}
+					tokens.add(source.substring(start, i));
+					lines.add(line);
+				}
+			}
+		}
+
+		// Rule names only document the policy, like comments.
+		List<Condition> parseRules() {
+			var rules = new ArrayList<Condition>();
+			while (pos < tokens.size()) {
+				expect("deny");
+				if (!next().startsWith("\"")) throw error("expected rule name");
+				expect("when");
+				rules.add(parseOr());
+			}
+			return rules;
+		}
+
+		private Condition parseOr() {
+			var conditions = new ArrayList<Condition>();
+			conditions.add(parseAnd());
+			while (accept("or")) conditions.add(parseAnd());
+			return conditions.size() == 1 ? conditions.get(0) : new Or(conditions);
+		}
+
+		private Condition parseAnd() {
+			var conditions = new ArrayList<Condition>();
+			conditions.add(parseUnary());
+			while (accept("and")) conditions.add(parseUnary());
+			return conditions.size() == 1 ? conditions.get(0) : new And(conditions);
+		}
+
+		private Condition parseUnary() {
+			if (accept("not")) return new Not(parseUnary());
+			if (accept("(")) {
+				var condition = parseOr();
+				expect(")");
+				return condition;
+			}
+			var attribute = new Attribute(next(), lines.get(pos - 1));
+			var op = next();
+			if (!Set.of("==", "!=", "<", "<=", ">", ">=", "contains").contains(op)) throw error("unknown operator " + op);
+			var literal = parseLiteral();
+			if (op.startsWith("<") || op.startsWith(">")) {
+				if (!(literal instanceof Long)) throw error("expected a number after " + op);
+			}
+			return new Comparison(attribute, op, literal);
+		}
+
+		private Object parseLiteral() {
+			var token = next();
+			if (token.startsWith("\"")) return token.substring(1, token.length() - 1);
+			try {
+				return Long.parseLong(token);
+			}
+			catch (NumberFormatException e) {
+				throw error("expected a string or number but found " + token);
+			}
+		}
+
+		private String next() {
+			if (pos >= tokens.size()) throw error("unexpected end of policy");
+			return tokens.get(pos++);
+		}
+
+		private boolean accept(String token) {
+			if (pos < tokens.size() && tokens.get(pos).equals(token)) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!accept(token)) throw error("expected " + token);
+		}
+
+		private IllegalArgumentException error(String message) {
+			var line = lines.isEmpty() ? 1 : lines.get(Math.min(pos, lines.size() - 1));
+			return new IllegalArgumentException("policy line " + line + ": " + message);
+		}
+	}
+}
@@ -11,11 +11,17 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 
+import com.manning.apisecurityinaction.controller.AuditLogWriter.AuditEvent;
+
 public class AuditController {
 	private final Database database;
+	private final AuditLogWriter auditLogWriter;
+	private final IdAllocator auditIds;
 
-	public AuditController(Database database) {
+	public AuditController(Database database, AuditLogWriter auditLogWriter) {
 		this.database = database;
+		this.auditLogWriter = auditLogWriter;
+		this.auditIds = new IdAllocator(database, "audit_id_seq");
 	}
 
 	public JSONArray readAuditLog(Request request, Response response) {
@@ -35,26 +41,26 @@ public class AuditController {
 			.put("time", row.getTimestamp("audit_time").toInstant());
 	}
 
+	// Audit events are queued and written in batches by AuditLogWriter, off the request thread.
 	public void auditRequestStart(Request request, Response response) {
-		database.withVoidTransaction(tx -> {
-			var auditId = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
-			request.attribute("audit_id", auditId);
-			database.updateUnique("INSERT INTO audit_log(audit_id, method, path, user_id, audit_time) VALUES (?, ?, ?, ?, current_timestamp)",
-				auditId,
-				request.requestMethod(),
-				request.pathInfo(),
-				request.attribute("subject")
-			);
-		});
+		var auditId = auditIds.nextId();
+		request.attribute("audit_id", auditId);
+		auditLogWriter.write(new AuditEvent(auditId,
+			request.requestMethod(),
+			request.pathInfo(),
+			null,
+			request.attribute("subject"),
+			Instant.now()
+		));
 	}
 
 	public void auditRequestEnd(Request request, Response response) {
-		database.updateUnique("INSERT INTO audit_log(audit_id, method, path, status, user_id, audit_time) VALUES (?, ?, ?, ?, ?, current_timestamp)",
-			request.attribute("audit_id"),
+		auditLogWriter.write(new AuditEvent(request.attribute("audit_id"),
 			request.requestMethod(),
 			request.pathInfo(),
 			response.status(),
-			request.attribute("subject")
-		);
+			request.attribute("subject"),
+			Instant.now()
+		));
 	}
 }
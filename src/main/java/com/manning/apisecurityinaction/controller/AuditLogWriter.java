@@ -0,0 +1,317 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class AuditLogWriter implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(AuditLogWriter.class);
+	private static final String INSERT_SQL =
+		"INSERT INTO audit_log(audit_id, method, path, status, user_id, audit_time) VALUES (?, ?, ?, ?, ?, ?)";
+	// The width of audit_log.path. Longer paths are truncated rather than failing the insert.
+	private static final int MAX_PATH_LENGTH = 100;
+
+	// What to do with an audit event when the queue is full.
+	public enum OverflowPolicy { BLOCK, DROP, SPILL }
+
+	private final Database database;
+	private final int batchSize;
+	private final Duration linger;
+	private final OverflowPolicy overflowPolicy;
+	private final Path spillFile;
+	// Spilled events being replayed. Deleted only once they have all been written, or spilled again.
+	private final Path replayFile;
+	private final BlockingQueue<AuditEvent> queue;
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong malformed = new AtomicLong();
+
+	public AuditLogWriter(Database database, int batchSize, Duration linger, int queueCapacity,
+		OverflowPolicy overflowPolicy, Path spillFile) {
+		if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null) {
+			throw new IllegalArgumentException("spill file required for SPILL overflow policy");
+		}
+		this.database = database;
+		this.batchSize = batchSize;
+		this.linger = linger;
+		this.overflowPolicy = overflowPolicy;
+		this.spillFile = spillFile;
+		this.replayFile = spillFile == null ? null : spillFile.resolveSibling(spillFile.getFileName() + ".replaying");
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+		this.writerThread = new Thread(this::run, "audit-log-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	public void write(AuditEvent event) {
+		if (!running) {
+			// Nothing would write it, and under BLOCK a full queue would never drain.
+			logger.warn("Dropped audit event after close: {}", event.toJson());
+			dropped.incrementAndGet();
+			return;
+		}
+		switch (overflowPolicy) {
+			case BLOCK:
+				try {
+					queue.put(event);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				break;
+			case DROP:
+				if (!queue.offer(event)) {
+					dropped.incrementAndGet();
+				}
+				break;
+			case SPILL:
+				if (!queue.offer(event)) {
+					spill(List.of(event));
+				}
+				break;
+		}
+	}
+
+	private void run() {
+		var batch = new ArrayList<AuditEvent>(batchSize);
+		while (running) {
+			try {
+				var event = queue.poll(1, TimeUnit.SECONDS);
+				if (event == null) {
+					// Catch up on spilled events while the queue is idle.
+					replaySpill();
+					continue;
+				}
+				batch.add(event);
+				// Linger briefly so a batch can fill up before it is written.
+				var deadline = System.nanoTime() + linger.toNanos();
+				while (batch.size() < batchSize) {
+					var remaining = deadline - System.nanoTime();
+					var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+					if (next == null) break;
+					batch.add(next);
+				}
+				flush(batch);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Throwable e) {
+				// Keep the writer alive, or callers block forever under BLOCK once the queue fills.
+				logger.error("Dropped {} audit events after an unexpected error", batch.size(), e);
+				dropped.addAndGet(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	private void flush(List<AuditEvent> batch) {
+		if (batch.isEmpty()) return;
+		try {
+			var args = new ArrayList<List<?>>(batch.size());
+			for (var event : batch) {
+				args.add(event.toRow());
+			}
+			database.updateBatch(INSERT_SQL, args);
+			written.addAndGet(batch.size());
+			batches.incrementAndGet();
+		}
+		catch (RuntimeException e) {
+			logger.warn("Failed to write batch of {} audit events, retrying one at a time", batch.size(), e);
+			var failed = insertEach(batch);
+			if (failed.isEmpty()) {
+				logger.info("Wrote all {} audit events individually", batch.size());
+			}
+			else if (failed.size() < batch.size() || databaseAvailable()) {
+				// The database is up, so these rows were rejected and would only fail again if spilled.
+				logger.error("Dropped {} audit events rejected by the database", failed.size());
+				dropped.addAndGet(failed.size());
+			}
+			else if (overflowPolicy == OverflowPolicy.SPILL) {
+				spill(failed);
+			}
+			else {
+				logger.error("Dropped {} audit events while the database is unavailable", failed.size());
+				dropped.addAndGet(failed.size());
+			}
+		}
+		batch.clear();
+	}
+
+	// Returns the events that could not be written.
+	private List<AuditEvent> insertEach(List<AuditEvent> events) {
+		var failed = new ArrayList<AuditEvent>();
+		for (var event : events) {
+			try {
+				database.update(INSERT_SQL, event.toRow().toArray());
+				written.incrementAndGet();
+			}
+			catch (RuntimeException e) {
+				logger.debug("Failed to write audit event {}", event.toJson(), e);
+				failed.add(event);
+			}
+		}
+		return failed;
+	}
+
+	private boolean databaseAvailable() {
+		try {
+			database.findUniqueInt("SELECT 1");
+			return true;
+		}
+		catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private synchronized void spill(List<AuditEvent> events) {
+		var lines = new ArrayList<String>(events.size());
+		for (var event : events) {
+			lines.add(event.toJson().toString());
+		}
+		try {
+			Files.write(spillFile, lines, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			spilled.addAndGet(events.size());
+		}
+		catch (IOException e) {
+			logger.error("Failed to spill {} audit events to {}", events.size(), spillFile, e);
+			dropped.addAndGet(events.size());
+		}
+	}
+
+	// Events that fail again are spilled to a fresh spill file. A crash mid-replay leaves the replay file to be
+	// replayed in full next time, so events may be written twice but are not lost.
+	private void replaySpill() {
+		if (spillFile == null) return;
+		List<String> lines;
+		try {
+			synchronized (this) {
+				if (!Files.exists(replayFile)) {
+					if (!Files.exists(spillFile)) return;
+					Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			lines = Files.readAllLines(replayFile, UTF_8);
+		}
+		catch (IOException e) {
+			logger.error("Failed to read spilled audit events from {}", spillFile, e);
+			return;
+		}
+		var batch = new ArrayList<AuditEvent>(batchSize);
+		for (var line : lines) {
+			try {
+				batch.add(AuditEvent.fromJson(new JSONObject(line)));
+			}
+			catch (RuntimeException e) {
+				// Most likely the last line, cut short by a crash while it was appended.
+				logger.error("Skipped malformed spilled audit event: {}", line, e);
+				malformed.incrementAndGet();
+				continue;
+			}
+			if (batch.size() == batchSize) flush(batch);
+		}
+		flush(batch);
+		try {
+			Files.delete(replayFile);
+		}
+		catch (IOException e) {
+			logger.error("Failed to delete replayed audit events in {}", replayFile, e);
+		}
+	}
+
+	// Stop the writer thread and write out everything still queued or spilled. Events written after this are dropped,
+	// so stop serving requests first.
+	@Override
+	public void close() {
+		// The writer notices within its one second poll timeout, without interrupting a write in progress.
+		running = false;
+		try {
+			writerThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		var batch = new ArrayList<AuditEvent>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0) {
+			flush(batch);
+		}
+		replaySpill();
+	}
+
+	public JSONObject metrics() {
+		return new JSONObject()
+			.put("queued", queue.size())
+			.put("written", written.get())
+			.put("batches", batches.get())
+			.put("dropped", dropped.get())
+			.put("spilled", spilled.get())
+			.put("malformed", malformed.get());
+	}
+
+	public static class AuditEvent {
+		private final Long auditId;
+		private final String method;
+		private final String path;
+		private final Integer status;
+		private final String userId;
+		private final Instant time;
+
+		public AuditEvent(Long auditId, String method, String path, Integer status, String userId, Instant time) {
+			this.auditId = auditId;
+			this.method = method;
+			this.path = path;
+			this.status = status;
+			this.userId = userId;
+			this.time = time;
+		}
+
+		private List<?> toRow() {
+			var storedPath = path.length() > MAX_PATH_LENGTH ? path.substring(0, MAX_PATH_LENGTH) : path;
+			return Arrays.asList(auditId, method, storedPath, status, userId, time);
+		}
+
+		private JSONObject toJson() {
+			return new JSONObject()
+				.putOpt("id", auditId)
+				.put("method", method)
+				.put("path", path)
+				.putOpt("status", status)
+				.putOpt("user", userId)
+				.put("time", time.toString());
+		}
+
+		private static AuditEvent fromJson(JSONObject json) {
+			return new AuditEvent(json.has("id") ? json.getLong("id") : null,
+				json.getString("method"),
+				json.getString("path"),
+				json.has("status") ? json.getInt("status") : null,
+				json.optString("user", null),
+				Instant.parse(json.getString("time")));
+		}
+	}
+}
@@ -6,6 +6,8 @@ import com.manning.apisecurityinaction.token.SecureTokenStore;
 import static java.time.Instant.now;
 import java.time.Duration;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import spark.Request;
@@ -21,17 +23,36 @@ public class CapabilityController {
 	}
 
 	public URI createUri(Request request, String path, String perms, Duration expiryDuration) {
+		var tokenId = tokenStore.create(request, newToken(request, path, perms, expiryDuration));
+
+		var uri = URI.create(request.uri());
+		// Add token to URI as a query parameter, per RFC 6750.
+		return uri.resolve(path + "?access_token=" + tokenId);
+	}
+
+	// Mint capabilities for many paths in one token store operation, e.g. a single batch insert.
+	public List<URI> createUris(Request request, List<String> paths, String perms, Duration expiryDuration) {
+		var tokens = new ArrayList<Token>(paths.size());
+		for (var path : paths) {
+			tokens.add(newToken(request, path, perms, expiryDuration));
+		}
+		var tokenIds = tokenStore.createAll(request, tokens);
+
+		var uri = URI.create(request.uri());
+		var uris = new ArrayList<URI>(paths.size());
+		for (int i = 0; i < paths.size(); i++) {
+			uris.add(uri.resolve(paths.get(i) + "?access_token=" + tokenIds.get(i)));
+		}
+		return uris;
+	}
+
+	private static Token newToken(Request request, String path, String perms, Duration expiryDuration) {
 		// Associate capability token with an authenticated user to harden capabilities.
 		var subject = (String) request.attribute("subject");
 		var token = new Token(now().plus(expiryDuration), subject);
 		token.attributes.put("path", path);
 		token.attributes.put("perms", perms);
-
-		var tokenId = tokenStore.create(request, token);
-
-		var uri = URI.create(request.uri());
-		// Add token to URI as a query parameter, per RFC 6750.
-		return uri.resolve(path + "?access_token=" + tokenId);
+		return token;
 	}
 
 	public void lookupPermissions(Request request, Response response) {
@@ -48,7 +69,7 @@ public class CapabilityController {
 
 			var tokenPath = token.attributes.get("path");
 			if (Objects.equals(tokenPath, request.pathInfo())) {
-				request.attribute("perms", token.attributes.get("perms"));
+				Permissions.set(request, token.attributes.get("perms"));
 			}
 		});
 	}
@@ -71,7 +92,7 @@ public class CapabilityController {
 		// Check that requested permissions are a subset of the token perms.
 		var tokenPerms = token.attributes.get("perms");
 		var perms = json.optString("perms", tokenPerms);
-		if (!tokenPerms.contains(perms)) {
+		if (!Permissions.includes(Permissions.parse(tokenPerms), Permissions.parse(perms))) {
 			halt(403);
 		}
 
@@ -1,19 +1,61 @@
 package com.manning.apisecurityinaction.controller;
 
+import java.time.Clock;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.kie.api.KieServices;
 import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.rule.FactHandle;
+
+public class DroolsAccessController extends ABACAccessController implements AutoCloseable {
+	// PER_REQUEST builds and disposes a fresh KieSession for each decision.
+	// REUSED borrows a session from a bounded pool with its facts already inserted, and only updates the fact
+	// contents. REUSED relies on the rules only calling the decision global, never inserting or retracting facts.
+	public enum SessionMode { PER_REQUEST, REUSED }
 
-public class DroolsAccessController extends ABACAccessController {
 	private final KieContainer kieContainer;
+	private final SessionMode sessionMode;
+	// Idle REUSED sessions. Sessions beyond the pool size are disposed when returned.
+	private final BlockingQueue<ReusableSession> idleSessions;
+	private volatile boolean closed;
 
 	public DroolsAccessController() {
+		this(SessionMode.PER_REQUEST);
+	}
+
+	public DroolsAccessController(SessionMode sessionMode) {
+		this(sessionMode, Clock.systemDefaultZone());
+	}
+
+	public DroolsAccessController(SessionMode sessionMode, Clock clock) {
+		this(sessionMode, clock, Runtime.getRuntime().availableProcessors());
+	}
+
+	public DroolsAccessController(SessionMode sessionMode, Clock clock, int maxIdleSessions) {
+		super(clock);
 		this.kieContainer = KieServices.get().getKieClasspathContainer();
+		this.sessionMode = sessionMode;
+		this.idleSessions = new ArrayBlockingQueue<>(maxIdleSessions);
 	}
 
 	boolean checkPermitted(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+		if (sessionMode == SessionMode.REUSED) {
+			var session = idleSessions.poll();
+			if (session == null) {
+				session = new ReusableSession(kieContainer.newKieSession());
+			}
+			try {
+				return session.checkPermitted(subject, resource, action, env);
+			}
+			finally {
+				release(session);
+			}
+		}
+
 		var session = kieContainer.newKieSession();
 		try {
 			var decision = new Decision();
@@ -32,19 +74,88 @@ public class DroolsAccessController extends ABACAccessController {
 		}
 	}
 
+	private void release(ReusableSession session) {
+		if (closed || !idleSessions.offer(session)) {
+			session.dispose();
+		}
+		// Catch a close() that ran between the check and the offer.
+		if (closed) {
+			close();
+		}
+	}
+
+	// Disposes the idle REUSED sessions. Sessions in use are disposed as they are returned.
+	@Override
+	public void close() {
+		closed = true;
+		ReusableSession session;
+		while ((session = idleSessions.poll()) != null) {
+			session.dispose();
+		}
+	}
+
+	// A long-lived session and fact objects, used by one thread at a time.
+	private static class ReusableSession {
+		private final KieSession session;
+		private final Decision decision = new Decision();
+		private final Subject subject = new Subject();
+		private final Resource resource = new Resource();
+		private final Action action = new Action();
+		private final Environment env = new Environment();
+		private final FactHandle subjectHandle;
+		private final FactHandle resourceHandle;
+		private final FactHandle actionHandle;
+		private final FactHandle envHandle;
+
+		ReusableSession(KieSession session) {
+			this.session = session;
+			session.setGlobal("decision", decision);
+			this.subjectHandle = session.insert(subject);
+			this.resourceHandle = session.insert(resource);
+			this.actionHandle = session.insert(action);
+			this.envHandle = session.insert(env);
+		}
+
+		boolean checkPermitted(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+			decision.reset();
+			update(subjectHandle, this.subject, subject);
+			update(resourceHandle, this.resource, resource);
+			update(actionHandle, this.action, action);
+			update(envHandle, this.env, env);
+
+			session.fireAllRules();
+			return decision.isPermitted();
+		}
+
+		private void update(FactHandle handle, Map<String, Object> fact, Map<String, Object> attrs) {
+			fact.clear();
+			fact.putAll(attrs);
+			// Re-evaluates the rules that match on this fact, as a fresh insert would.
+			session.update(handle, fact);
+		}
+
+		void dispose() {
+			session.dispose();
+		}
+	}
+
 	public static class Subject extends HashMap<String, Object> {
+		Subject() {}
 		Subject(Map<String, Object> m) { super(m); }
 	}
 
 	public static class Resource extends HashMap<String, Object> {
+		Resource() {}
 		Resource(Map<String, Object> m) { super(m); }
 	}
 
 	public static class Action extends HashMap<String, Object> {
+		Action() {}
 		Action(Map<String, Object> m) { super(m); }
 	}
 
 	public static class Environment extends HashMap<String, Object> {
+		Environment() {}
 		Environment(Map<String, Object> m) { super(m); }
 	}
 }
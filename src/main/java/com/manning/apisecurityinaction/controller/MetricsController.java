@@ -0,0 +1,33 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import com.google.common.cache.CacheStats;
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+public class MetricsController {
+	// Keep metric sources sorted by name for stable output.
+	private final Map<String, Supplier<JSONObject>> sources = new ConcurrentSkipListMap<>();
+
+	public void register(String name, Supplier<JSONObject> source) {
+		sources.put(name, source);
+	}
+
+	public JSONObject readMetrics(Request request, Response response) {
+		var metrics = new JSONObject();
+		sources.forEach((name, source) -> metrics.put(name, source.get()));
+		return metrics;
+	}
+
+	public static JSONObject toJson(CacheStats stats) {
+		return new JSONObject()
+			.put("hits", stats.hitCount())
+			.put("misses", stats.missCount())
+			.put("hitRate", stats.hitRate())
+			.put("evictions", stats.evictionCount());
+	}
+}
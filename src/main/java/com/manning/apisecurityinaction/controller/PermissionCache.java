@@ -0,0 +1,99 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+// Caches each user's role in a space, and resolves it to permissions from role_permissions, which is loaded once.
+// Membership changes bump acl_version. Every pod polls that version and flushes its cache when it moves,
+// so other pods see a change within one poll interval. The pod making the change invalidates its entry at once.
+public class PermissionCache implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(PermissionCache.class);
+
+	private final Database database;
+	private final Map<String, String> rolePermissions;
+	// Role ID by "spaceId/userId", or "" for no role.
+	private final Cache<String, String> roles;
+	private final ScheduledExecutorService poller;
+	private volatile long version;
+	private final AtomicLong flushes = new AtomicLong();
+
+	public PermissionCache(Database database, Duration pollInterval) {
+		this.database = database;
+		this.rolePermissions = Map.copyOf(database.findMap(String.class, String.class,
+			"SELECT role_id, perms FROM role_permissions"));
+		this.roles = CacheBuilder.newBuilder()
+			.maximumSize(100_000)
+			// A backstop in case a load raced with a flush and cached a stale role.
+			.expireAfterWrite(Duration.ofMinutes(5))
+			.recordStats()
+			.build();
+		this.version = currentVersion();
+
+		this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "permission-cache-poller");
+			thread.setDaemon(true);
+			return thread;
+		});
+		poller.scheduleWithFixedDelay(this::poll, pollInterval.toMillis(), pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public String lookupPermissions(long spaceId, String userId) {
+		try {
+			var role = roles.get(spaceId + "/" + userId, () -> database.findOptional(String.class,
+				"SELECT role_id FROM user_roles WHERE space_id = ? AND user_id = ?", spaceId, userId).orElse(""));
+			return rolePermissions.getOrDefault(role, "");
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// Call after changing a user's role in a space, in the same transaction as the change.
+	// Should a read slip in before the commit and cache the old role, the version bump flushes it on the next poll.
+	public void invalidate(long spaceId, String userId) {
+		database.update("UPDATE acl_version SET version = version + 1");
+		roles.invalidate(spaceId + "/" + userId);
+	}
+
+	private void poll() {
+		try {
+			var latest = currentVersion();
+			if (latest != version) {
+				version = latest;
+				roles.invalidateAll();
+				flushes.incrementAndGet();
+			}
+		}
+		catch (RuntimeException e) {
+			logger.warn("Failed to poll acl_version", e);
+		}
+	}
+
+	private long currentVersion() {
+		return database.findUniqueLong("SELECT version FROM acl_version");
+	}
+
+	@Override
+	public void close() {
+		poller.shutdownNow();
+	}
+
+	public JSONObject metrics() {
+		return MetricsController.toJson(roles.stats())
+			.put("version", version)
+			.put("flushes", flushes.get());
+	}
+}
@@ -0,0 +1,50 @@
+package com.manning.apisecurityinaction.controller;
+
+import spark.Request;
+
+// Permission strings such as "rwd" as bitsets, so permission checks and capability sharing are mask tests
+// rather than substring searches. A request's bits are kept alongside its "perms" attribute.
+final class Permissions {
+	static final int READ = 1;
+	static final int WRITE = 2;
+	static final int DELETE = 4;
+	// Set for any other letter. Held, it grants nothing. Required, it can never be satisfied.
+	private static final int UNKNOWN = 8;
+	private static final String ATTRIBUTE = "permBits";
+
+	private Permissions() {}
+
+	static int parse(String perms) {
+		int bits = 0;
+		for (int i = 0; i < perms.length(); i++) {
+			switch (perms.charAt(i)) {
+				case 'r': bits |= READ; break;
+				case 'w': bits |= WRITE; break;
+				case 'd': bits |= DELETE; break;
+				default: bits |= UNKNOWN;
+			}
+		}
+		return bits;
+	}
+
+	// Whether the held permissions include every required one.
+	static boolean includes(int held, int required) {
+		return (required & UNKNOWN) == 0 && (held & required) == required;
+	}
+
+	static void set(Request request, String perms) {
+		request.attribute("perms", perms);
+		request.attribute(ATTRIBUTE, perms == null ? 0 : parse(perms));
+	}
+
+	// The request's permission bits, or none if no permissions were looked up.
+	static int of(Request request) {
+		Integer cached = request.attribute(ATTRIBUTE);
+		if (cached == null) {
+			String perms = request.attribute("perms");
+			cached = perms == null ? 0 : parse(perms);
+			request.attribute(ATTRIBUTE, cached);
+		}
+		return cached;
+	}
+}
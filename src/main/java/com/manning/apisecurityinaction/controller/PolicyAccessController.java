@@ -0,0 +1,75 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+// Evaluates a compiled ABACPolicy directly against the request attributes, without a rule engine.
+// Optionally caches decisions, keyed on just the attribute values the policy references.
+public class PolicyAccessController extends ABACAccessController {
+	private final long maxCachedDecisions;
+	// The policy and its decision cache are swapped together, so a decision can't outlive its rule set.
+	private volatile Compiled compiled;
+
+	public PolicyAccessController(ABACPolicy policy) {
+		this(policy, Clock.systemDefaultZone(), 0);
+	}
+
+	public PolicyAccessController(ABACPolicy policy, long maxCachedDecisions) {
+		this(policy, Clock.systemDefaultZone(), maxCachedDecisions);
+	}
+
+	public PolicyAccessController(ABACPolicy policy, Clock clock) {
+		this(policy, clock, 0);
+	}
+
+	// A maxCachedDecisions of 0 disables the decision cache.
+	public PolicyAccessController(ABACPolicy policy, Clock clock, long maxCachedDecisions) {
+		super(clock);
+		this.maxCachedDecisions = maxCachedDecisions;
+		this.compiled = new Compiled(policy, maxCachedDecisions);
+	}
+
+	// Swap in a new rule set, discarding every cached decision. Requests already being checked finish against the old one.
+	public void reload(ABACPolicy policy) {
+		this.compiled = new Compiled(policy, maxCachedDecisions);
+	}
+
+	// Stats for the current rule set's decision cache, or empty stats if caching is disabled.
+	public CacheStats cacheStats() {
+		var cache = compiled.decisions;
+		return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+	}
+
+	boolean checkPermitted(Map<String, Object> subject, Map<String, Object> resource, Map<String, Object> action, Map<String, Object> env) {
+		var compiled = this.compiled;
+		if (compiled.decisions == null) {
+			return compiled.policy.permits(subject, resource, action, env);
+		}
+		try {
+			return compiled.decisions.get(compiled.policy.decisionKey(subject, resource, action, env),
+				() -> compiled.policy.permits(subject, resource, action, env));
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static class Compiled {
+		private final ABACPolicy policy;
+		private final Cache<List<Object>, Boolean> decisions;
+
+		Compiled(ABACPolicy policy, long maxCachedDecisions) {
+			this.policy = policy;
+			this.decisions = maxCachedDecisions == 0 ? null : CacheBuilder.newBuilder()
+				.maximumSize(maxCachedDecisions)
+				.recordStats()
+				.build();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import spark.Request;
+
+// Scope names interned to bit positions, so a token's scope string is parsed once per request into a long
+// and each requireScope filter is a single mask test. Only scopes that some filter requires are interned.
+// Any other scope can't satisfy a check, so parsing drops it, and clients can't grow the table.
+final class Scopes {
+	private static final String ATTRIBUTE = "scopeBits";
+	private static final ConcurrentHashMap<String, Long> bits = new ConcurrentHashMap<>();
+
+	private Scopes() {}
+
+	// Call when building a filter, before requests are parsed against the table.
+	static synchronized long intern(String scope) {
+		var bit = bits.get(scope);
+		if (bit == null) {
+			if (bits.size() == Long.SIZE) {
+				throw new IllegalStateException("Too many distinct required scopes");
+			}
+			bit = 1L << bits.size();
+			bits.put(scope, bit);
+		}
+		return bit;
+	}
+
+	// The bits of the interned scopes in a space-separated scope string.
+	static long parse(String scope) {
+		long result = 0;
+		int start = 0;
+		while (start < scope.length()) {
+			var end = scope.indexOf(' ', start);
+			if (end < 0) end = scope.length();
+			if (end > start) {
+				var bit = bits.get(scope.substring(start, end));
+				if (bit != null) result |= bit;
+			}
+			start = end + 1;
+		}
+		return result;
+	}
+
+	// The request's scope bits, parsed from its "scope" attribute on first use. Null if the request is unscoped.
+	static Long of(Request request) {
+		Long cached = request.attribute(ATTRIBUTE);
+		if (cached == null) {
+			String scope = request.attribute("scope");
+			if (scope == null) {
+				return null;
+			}
+			cached = parse(scope);
+			request.attribute(ATTRIBUTE, cached);
+		}
+		return cached;
+	}
+}
@@ -7,7 +7,7 @@ import spark.*;
 import java.time.Instant;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
-import java.util.stream.Collectors;
+import java.util.Base64;
 import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
@@ -18,35 +18,80 @@ import java.net.URLEncoder;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 public class SpaceController {
 	private static final Set<String> DEFINED_ROLES = Set.of("owner", "moderator", "member", "observer");
+	private static final Pattern LINK_PATTERN = Pattern.compile("https?://\\S+");
+	// Overall time budget for fetching all link previews of a message.
+	private static final Duration LINK_PREVIEW_DEADLINE = Duration.ofSeconds(3);
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final int MAX_PAGE_SIZE = 100;
+	static final String FIND_MESSAGES_SQL = "SELECT msg_time, msg_id FROM messages " +
+		"WHERE space_id = ? AND msg_time >= ? AND (msg_time, msg_id) > (?, ?) " +
+		"ORDER BY msg_time, msg_id LIMIT ?;";
 
 	private final Database database;
 	private final CapabilityController capController;
+	private final PermissionCache permissions;
+	private final IdAllocator spaceIds;
+	private final IdAllocator msgIds;
 
 	private final HttpClient httpClient = HttpClient.newHttpClient();
 	private final URI linkPreviewService = URI.create("http://natter-link-preview-service:4567");
+	// Share previews across requests so popular links aren't re-fetched on every read.
+	private final Cache<String, JSONObject> linkPreviews = CacheBuilder.newBuilder()
+		.maximumSize(10_000)
+		.expireAfterWrite(Duration.ofMinutes(10))
+		.build();
+	// Remember failed previews for a shorter time, so broken links don't cost a round trip on every read.
+	private final Cache<String, Boolean> failedLinkPreviews = CacheBuilder.newBuilder()
+		.maximumSize(10_000)
+		.expireAfterWrite(Duration.ofMinutes(1))
+		.build();
 
-	public SpaceController(Database database, CapabilityController capController) {
+	public SpaceController(Database database, CapabilityController capController, PermissionCache permissions) {
 		this.database = database;
 		this.capController = capController;
+		this.permissions = permissions;
+		this.spaceIds = new IdAllocator(database, "space_id_seq");
+		this.msgIds = new IdAllocator(database, "msg_id_seq");
 	}
 
-	private JSONObject fetchLinkPreview(String link) {
+	private CompletableFuture<JSONObject> fetchLinkPreview(String link) {
+		var cached = linkPreviews.getIfPresent(link);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		if (failedLinkPreviews.getIfPresent(link) != null) {
+			return CompletableFuture.completedFuture(null);
+		}
+
 		var url = linkPreviewService.resolve("/preview?url="
 			+ URLEncoder.encode(link, StandardCharsets.UTF_8));
-		var request = HttpRequest.newBuilder(url).GET().build();
+		var request = HttpRequest.newBuilder(url).timeout(LINK_PREVIEW_DEADLINE).GET().build();
 
-		try {
-			var response = httpClient.send(request, BodyHandlers.ofString());
-			if (response.statusCode() == 200) {
-				return new JSONObject(response.body());
-			}
-		}
-		catch (Exception e) { // Ignore any thrown exceptions.
-		}
-		return null;
+		return httpClient.sendAsync(request, BodyHandlers.ofString())
+			.thenApply(response -> response.statusCode() == 200 ? new JSONObject(response.body()) : null)
+			.exceptionally(e -> null) // Ignore any thrown exceptions.
+			.thenApply(preview -> {
+				// Cache the result even if the reader has stopped waiting for it.
+				if (preview != null) {
+					linkPreviews.put(link, preview);
+				}
+				else {
+					failedLinkPreviews.put(link, Boolean.TRUE);
+				}
+				return preview;
+			});
 	}
 
 	public JSONObject createSpace(Request request, Response response) {
@@ -68,8 +113,7 @@ public class SpaceController {
 		}
 
 		return database.withTransaction(tx -> {
-			var spaceId = database.findUniqueLong(
-				"SELECT NEXT VALUE FOR space_id_seq;");
+			var spaceId = spaceIds.nextId();
 			// WARNING: This next line of code is vulnerable to SQL injection.
 			database.updateUnique(
 				"INSERT INTO spaces(space_id, name, owner) " +
@@ -88,6 +132,7 @@ public class SpaceController {
 			database.updateUnique(
 				"INSERT INTO user_roles(space_id, user_id, role_id) VALUES (?, ?, ?)",
 				spaceId, owner, "owner");
+			permissions.invalidate(spaceId, owner);
 			*/
 
 			var expiry = Duration.ofDays(999);
@@ -126,8 +171,7 @@ public class SpaceController {
     }
 
     return database.withTransaction(tx -> {
-      var msgId = database.findUniqueLong(
-          "SELECT NEXT VALUE FOR msg_id_seq;");
+      var msgId = msgIds.nextId();
       database.updateUnique(
           "INSERT INTO messages(space_id, msg_id, msg_time," +
               "author, msg_text) " +
@@ -150,42 +194,90 @@ public class SpaceController {
             "FROM messages WHERE msg_id = ? AND space_id = ?",
         msgId, spaceId);
 
-	var linkPattern = Pattern.compile("https?://\\S+");
-	var matcher = linkPattern.matcher(message.message);
-	int start = 0;
-	while (matcher.find(start)) {
-		var url = matcher.group();
-		var preview = fetchLinkPreview(url);
-		if (preview != null) {
-			message.links.add(preview);
+	// Fetch all link previews concurrently.
+	var previews = new ArrayList<CompletableFuture<JSONObject>>();
+	var matcher = LINK_PATTERN.matcher(message.message);
+	while (matcher.find()) {
+		previews.add(fetchLinkPreview(matcher.group()));
+	}
+	// Wait for them together, up to one deadline for the whole message.
+	var waitStart = System.nanoTime();
+	try {
+		CompletableFuture.allOf(previews.toArray(new CompletableFuture<?>[0]))
+			.get(LINK_PREVIEW_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+	}
+	catch (TimeoutException | ExecutionException e) { // Return whichever previews arrived in time.
+	}
+	catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	}
+	// Keep slow third-party sites out of the concurrency limiter's latency signal.
+	request.attribute("upstream_wait_nanos", System.nanoTime() - waitStart);
+	for (var preview : previews) {
+		var link = preview.getNow(null);
+		if (link != null) {
+			message.links.add(link);
 		}
-		start = matcher.end();
 	}
 
     response.status(200);
     return message;
   }
 
-  public JSONArray findMessages(Request request, Response response) {
+  public String findMessages(Request request, Response response) {
     var since = Instant.now().minus(1, ChronoUnit.DAYS);
     if (request.queryParams("since") != null) {
       since = Instant.parse(request.queryParams("since"));
     }
     var spaceId = Long.parseLong(request.params(":spaceId"));
 
-    var messages = database.findAll(Long.class,
-        "SELECT msg_id FROM messages " +
-            "WHERE space_id = ? AND msg_time >= ?;",
-        spaceId, since);
+    var limit = DEFAULT_PAGE_SIZE;
+    if (request.queryParams("limit") != null) {
+      limit = Integer.parseInt(request.queryParams("limit"));
+      if (limit < 1 || limit > MAX_PAGE_SIZE) {
+        throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+      }
+    }
+    // Resume after the last message of the previous page, or from the start of the time range.
+    var after = request.queryParams("cursor") != null
+        ? MessageCursor.decode(request.queryParams("cursor"))
+        : new MessageCursor(since, 0);
+
+    // Keyset pagination over (msg_time, msg_id). Fetch one extra row to tell if there is a next page.
+    // Start the msg_space_time_idx range scan at the cursor, not at since, so deep pages stay cheap.
+    var from = after.time.isAfter(since) ? after.time : since;
+    var messages = database.findAll(MessageCursor::fromRow, FIND_MESSAGES_SQL,
+        spaceId, from, after.time, after.msgId, limit + 1);
+    if (messages.size() > limit) {
+      messages = messages.subList(0, limit);
+      var next = "/spaces/" + spaceId + "/messages?limit=" + limit
+          + "&since=" + URLEncoder.encode(since.toString(), StandardCharsets.UTF_8) + "&cursor=" + messages.get(limit - 1).encode();
+      // A capability for this listing covers every page of it, so pass it on rather than minting another.
+      if (request.queryParams("access_token") != null) {
+        next += "&access_token=" + URLEncoder.encode(request.queryParams("access_token"), StandardCharsets.UTF_8);
+      }
+      response.header("Link", "<" + next + ">; rel=\"next\"");
+    }
 
 	// Always base permissions on permissions set for current request.
 	var perms = request.<String>attribute("perms").replace("w", "");
 	var expiry = Duration.ofDays(999);
+    // Mint capabilities for the whole page in one operation.
+    var paths = new ArrayList<String>(messages.size());
+    for (var message : messages) {
+      paths.add("/spaces/" + spaceId + "/messages/" + message.msgId);
+    }
+    var uris = capController.createUris(request, paths, perms, expiry);
+
+    // Write capability URIs straight out as JSON, rather than building a JSONArray first.
+    var json = new StringBuilder();
+    var writer = new JSONWriter(json).array();
+    for (var uri : uris) {
+      writer.value(uri.toString());
+    }
+    writer.endArray();
     response.status(200);
-    return new JSONArray(messages.stream()
-        .map(msgId -> "/spaces/" + spaceId + "/messages/" + msgId)
-		.map(path -> capController.createUri(request, path, perms, expiry))
-        .collect(Collectors.toList()));
+    return json.toString();
   }
 
   public JSONObject addMember(Request request, Response response) {
@@ -198,9 +290,12 @@ public class SpaceController {
       throw new IllegalArgumentException("invalid role");
     }
 
-    database.updateUnique(
-            "INSERT INTO user_roles(space_id, user_id, role_id) " +
-                    "VALUES(?, ?, ?)", spaceId, userToAdd, role);
+    database.withVoidTransaction(tx -> {
+      database.updateUnique(
+              "INSERT INTO user_roles(space_id, user_id, role_id) " +
+                      "VALUES(?, ?, ?)", spaceId, userToAdd, role);
+      permissions.invalidate(spaceId, userToAdd);
+    });
 
     response.status(200);
     return new JSONObject()
@@ -208,6 +303,38 @@ public class SpaceController {
             .put("role", role);
   }
 
+  // Position of a message in (msg_time, msg_id) order, encoded as an opaque pagination cursor.
+  private static class MessageCursor {
+    private final Instant time;
+    private final long msgId;
+
+    private MessageCursor(Instant time, long msgId) {
+      this.time = time;
+      this.msgId = msgId;
+    }
+
+    private static MessageCursor fromRow(ResultSet row) throws SQLException {
+      return new MessageCursor(row.getTimestamp(1).toInstant(), row.getLong(2));
+    }
+
+    private String encode() {
+      return Base64.getUrlEncoder().withoutPadding()
+          .encodeToString((time + "," + msgId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageCursor decode(String cursor) {
+      try {
+        var decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        var index = decoded.indexOf(',');
+        return new MessageCursor(Instant.parse(decoded.substring(0, index)),
+            Long.parseLong(decoded.substring(index + 1)));
+      }
+      catch (RuntimeException e) {
+        throw new IllegalArgumentException("invalid cursor");
+      }
+    }
+  }
+
   public static class Message {
     private final long spaceId;
     private final long msgId;
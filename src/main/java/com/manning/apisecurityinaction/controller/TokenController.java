@@ -2,7 +2,6 @@ package com.manning.apisecurityinaction.controller;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Set;
 
 import org.json.JSONObject;
 import spark.Request;
@@ -22,6 +21,7 @@ public class TokenController {
 	}
 
 	public Filter requireScope(String method, String requiredScope) {
+		var required = Scopes.intern(requiredScope);
 		return (request, response) -> {
 			if (!method.equalsIgnoreCase(request.requestMethod())) {
 				return; // Ignore filter if HTTP method doesn't match request.
@@ -29,11 +29,11 @@ public class TokenController {
 			// If token is unscoped (then user directly authenticated the request with Basic authentication).
 			// Any client with access to user password could issue themselves a token with any scope.
 			// So we skip the scope check filter and allow the request to proceed.
-			var tokenScope = request.<String>attribute("scope");
-			if (tokenScope == null) return;
+			var tokenScopes = Scopes.of(request);
+			if (tokenScopes == null) return;
 			// See Bearer authentication scheme for further detail regarding dedicated error code.
 			// Also, see chapter 7.1.1.
-			if (!Set.of(tokenScope.split(" ")).contains(requiredScope)) {
+			if ((tokenScopes & required) == 0) {
 				response.header("WWW-Authenticate",
 					"Bearer error=\"insufficient_scope\",scope=\"" + requiredScope + "\"");
 				halt(403);
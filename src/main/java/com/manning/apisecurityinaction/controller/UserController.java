@@ -1,5 +1,7 @@
 package com.manning.apisecurityinaction.controller;
 
+import com.manning.apisecurityinaction.token.CryptoPrimitives;
+
 import com.lambdaworks.crypto.SCryptUtil;
 import org.dalesbred.Database;
 import org.json.JSONObject;
@@ -16,14 +18,58 @@ import java.net.URLDecoder;
 import java.security.cert.X509Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CertificateParsingException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 public class UserController {
 	private static final String USERNAME_PATTERN = "[a-zA-Z][a-zA-Z0-9]{1,29}";
 
 	private final Database database;
+	private final PermissionCache permissions;
+	// Each scrypt call needs ~32 MB and tens of ms of CPU, so run them on a small pool with a short queue.
+	private final ThreadPoolExecutor passwordHashing;
+	private final AtomicLong rejectedHashing = new AtomicLong();
+	// Successful verifications, keyed by an HMAC of username and password, mapped to the pw_hash they were checked against.
+	private final Cache<String, String> verifiedCredentials;
+	// Random per-process key, so cached entries can't be brute-forced offline like an unkeyed hash could.
+	private final CryptoPrimitives.Hmac credentialCacheMac;
+
+	public UserController(Database database, PermissionCache permissions) {
+		this(database, permissions, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 16, Duration.ofMinutes(5));
+	}
 
-	public UserController(Database database) {
+	public UserController(Database database, PermissionCache permissions, int hashingThreads, int hashingQueueSize,
+		Duration credentialCacheTtl) {
 		this.database = database;
+		this.permissions = permissions;
+		// Daemon threads, so an idle pool doesn't keep the JVM alive after Spark stops.
+		var threadCount = new AtomicInteger();
+		this.passwordHashing = new ThreadPoolExecutor(hashingThreads, hashingThreads, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(hashingQueueSize), runnable -> {
+				var thread = new Thread(runnable, "password-hashing-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		this.verifiedCredentials = CacheBuilder.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterWrite(credentialCacheTtl)
+			.recordStats()
+			.build();
+		var keyBytes = new byte[32];
+		new SecureRandom().nextBytes(keyBytes);
+		this.credentialCacheMac = CryptoPrimitives.hmac(new SecretKeySpec(keyBytes, "HmacSHA256"));
 	}
 
 	public static X509Certificate decodeCert(String encodedCert) {
@@ -68,19 +114,19 @@ public class UserController {
 		var spaceId = Long.parseLong(request.params(":spaceId"));
 		var username = (String) request.attribute("subject");
 
-		var perms = database.findOptional(String.class, "SELECT rp.perms FROM role_permissions rp JOIN user_roles ur ON rp.role_id = ur.role_id WHERE ur.space_id = ? AND ur.user_id = ?", spaceId, username).orElse("");
-		request.attribute("perms", perms);
+		var perms = permissions.lookupPermissions(spaceId, username);
+		Permissions.set(request, perms);
 	}
 
 	public Filter requirePermission(String method, String permission) {
+		var required = Permissions.parse(permission);
 		return (request, response) -> {
 			// Ignore requests that don't match the request method.
 			if (!method.equalsIgnoreCase(request.requestMethod())) {
 				return;
 			}
 
-			var perms = request.<String>attribute("perms");
-			if (!perms.contains(permission)) {
+			if (!Permissions.includes(Permissions.of(request), required)) {
 				halt(403);
 			}
 		};
@@ -123,11 +169,56 @@ public class UserController {
 		}
 
 		var hash = database.findOptional(String.class, "SELECT pw_hash FROM users WHERE user_id = ?", username);
-		if (hash.isPresent() && SCryptUtil.check(password, hash.get())) {
+		if (hash.isEmpty()) {
+			return;
+		}
+		// Skip scrypt if these credentials were recently verified against the same stored hash.
+		// A password change replaces pw_hash (with a new salt), which invalidates the entry on every pod.
+		var cacheKey = credentialCacheKey(username, password);
+		if (hash.get().equals(verifiedCredentials.getIfPresent(cacheKey))) {
+			request.attribute("subject", username);
+			return;
+		}
+		if (hashPassword(() -> SCryptUtil.check(password, hash.get()), response)) {
+			verifiedCredentials.put(cacheKey, hash.get());
 			request.attribute("subject", username);
 		}
 	}
 
+	private String credentialCacheKey(String username, String password) {
+		// Usernames can't contain ':', so this encoding is unambiguous.
+		return credentialCacheMac.computeBase64url(username + ":" + password);
+	}
+
+	// Run scrypt on the bounded pool. Shed load with 503 rather than queue without limit.
+	private <T> T hashPassword(Callable<T> task, Response response) {
+		try {
+			return passwordHashing.submit(task).get();
+		}
+		catch (RejectedExecutionException e) {
+			rejectedHashing.incrementAndGet();
+			response.header("Retry-After", "1");
+			throw halt(503);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public JSONObject metrics() {
+		var stats = verifiedCredentials.stats();
+		return new JSONObject()
+			.put("hashingActive", passwordHashing.getActiveCount())
+			.put("hashingQueued", passwordHashing.getQueue().size())
+			.put("hashingRejected", rejectedHashing.get())
+			.put("credentialCacheHits", stats.hitCount())
+			.put("credentialCacheMisses", stats.missCount());
+	}
+
 	public JSONObject registerUser(Request request, Response response) throws Exception {
 		var json = new JSONObject(request.body());
 		var username = json.getString("username");
@@ -141,7 +232,7 @@ public class UserController {
 		}
 
 		// See https://words.filippo.io/the-scrypt-parameters/ for more on scrypt parameter selection.
-		var hash = SCryptUtil.scrypt(password, 32768, 8, 1);
+		var hash = hashPassword(() -> SCryptUtil.scrypt(password, 32768, 8, 1), response);
 		database.updateUnique("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)", username, hash);
 
 		response.status(201);
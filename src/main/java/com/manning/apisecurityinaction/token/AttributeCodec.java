@@ -0,0 +1,173 @@
+package com.manning.apisecurityinaction.token;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Compact binary encoding of token attributes, used by DatabaseTokenStore instead of JSON.
+//
+// Version 1: a version byte, then one entry per attribute. An entry starts with a tag byte:
+//   k         well-known key KEYS[k], then a string value
+//   k | 0x80  well-known key KEYS[k], then a packed value (see below)
+//   0x7F      any other key: a string key, then a string value
+// Strings are a varint byte length followed by UTF-8. Packed values are a varint bitmask:
+//   scope  bit i set for SCOPES[i], used when the scope is those scopes in dictionary order, space separated
+//   perms  bit i set for PERMS[i], likewise for perms such as "rwd" or "rd"
+// Anything else, including unknown scopes or perms in another order, is stored as a string, so decoding
+// always gives back the exact attribute values.
+public final class AttributeCodec {
+	public static final byte VERSION_1 = 1;
+
+	// The dictionaries are part of the stored format: only ever append to them.
+	private static final List<String> KEYS = List.of("scope", "path", "perms");
+	private static final List<String> SCOPES = List.of("create_space", "post_message", "read_message", "list_messages",
+		"delete_message", "add_member", "full_access");
+	private static final List<String> PERMS = List.of("r", "w", "d");
+
+	private static final int SCOPE = 0;
+	private static final int PERMS_KEY = 2;
+	private static final int PACKED = 0x80;
+	private static final int OTHER_KEY = 0x7F;
+
+	// Canonical strings for each bitmask, so decoding packed values allocates nothing, and the reverse for encoding.
+	private static final String[] SCOPE_STRINGS = canonicalStrings(SCOPES, " ");
+	private static final String[] PERMS_STRINGS = canonicalStrings(PERMS, "");
+	private static final Map<String, Integer> SCOPE_MASKS = masks(SCOPE_STRINGS);
+	private static final Map<String, Integer> PERMS_MASKS = masks(PERMS_STRINGS);
+
+	private AttributeCodec() {}
+
+	public static byte[] encode(Map<String, String> attributes) {
+		var out = new ByteArrayOutputStream(64);
+		out.write(VERSION_1);
+		attributes.forEach((key, value) -> {
+			var k = KEYS.indexOf(key);
+			var mask = k == SCOPE ? SCOPE_MASKS.get(value) : k == PERMS_KEY ? PERMS_MASKS.get(value) : null;
+			if (mask != null) {
+				out.write(k | PACKED);
+				writeVarint(out, mask);
+			}
+			else if (k >= 0) {
+				out.write(k);
+				writeString(out, value);
+			}
+			else {
+				out.write(OTHER_KEY);
+				writeString(out, key);
+				writeString(out, value);
+			}
+		});
+		return out.toByteArray();
+	}
+
+	public static void decode(byte[] encoded, Map<String, String> attributes) {
+		if (encoded.length == 0 || encoded[0] != VERSION_1) {
+			throw new IllegalArgumentException("Unsupported attribute encoding");
+		}
+		var in = new Reader(encoded);
+		while (in.pos < encoded.length) {
+			var tag = encoded[in.pos++] & 0xFF;
+			if (tag == OTHER_KEY) {
+				var key = in.readString();
+				attributes.put(key, in.readString());
+				continue;
+			}
+			var k = tag & ~PACKED;
+			if (k >= KEYS.size()) {
+				throw new IllegalArgumentException("Unknown attribute tag " + tag);
+			}
+			var key = KEYS.get(k);
+			if ((tag & PACKED) == 0) {
+				attributes.put(key, in.readString());
+			}
+			else if (k == SCOPE || k == PERMS_KEY) {
+				var strings = k == SCOPE ? SCOPE_STRINGS : PERMS_STRINGS;
+				var mask = in.readVarint();
+				if (mask < 0 || mask >= strings.length) {
+					throw new IllegalArgumentException("Invalid packed " + key);
+				}
+				attributes.put(key, strings[mask]);
+			}
+			else {
+				throw new IllegalArgumentException("Attribute " + key + " can't be packed");
+			}
+		}
+	}
+
+	private static Map<String, Integer> masks(String[] canonical) {
+		var masks = new HashMap<String, Integer>();
+		for (int mask = 0; mask < canonical.length; mask++) {
+			masks.put(canonical[mask], mask);
+		}
+		return Map.copyOf(masks);
+	}
+
+	private static String[] canonicalStrings(List<String> dictionary, String separator) {
+		var strings = new String[1 << dictionary.size()];
+		for (int mask = 0; mask < strings.length; mask++) {
+			var joined = new StringBuilder();
+			for (int i = 0; i < dictionary.size(); i++) {
+				if ((mask & (1 << i)) != 0) {
+					if (joined.length() > 0) joined.append(separator);
+					joined.append(dictionary.get(i));
+				}
+			}
+			strings[mask] = joined.toString();
+		}
+		return strings;
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		var bytes = value.getBytes(UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static class Reader {
+		private final byte[] bytes;
+		private int pos = 1;
+
+		Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				var b = read();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		String readString() {
+			var length = readVarint();
+			if (length < 0 || length > bytes.length - pos) {
+				throw new IllegalArgumentException("Truncated attribute encoding");
+			}
+			var value = new String(bytes, pos, length, UTF_8);
+			pos += length;
+			return value;
+		}
+
+		private int read() {
+			if (pos >= bytes.length) {
+				throw new IllegalArgumentException("Truncated attribute encoding");
+			}
+			return bytes[pos++];
+		}
+	}
+}
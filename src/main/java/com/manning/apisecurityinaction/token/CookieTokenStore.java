@@ -2,8 +2,6 @@ package com.manning.apisecurityinaction.token;
 
 import java.util.Optional;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.nio.charset.StandardCharsets;
 import spark.Request;
 
 public class CookieTokenStore implements SecureTokenStore {
@@ -26,7 +24,7 @@ public class CookieTokenStore implements SecureTokenStore {
 
 		// URL-safe Base64 encode of SHA-256 hash.
 		// See chapter 4.4.3 for further detail.
-		return Base64url.encode(sha256(session.id())); 
+		return CryptoPrimitives.sha256Base64url(session.id());
 	}
 
 	@Override
@@ -52,13 +50,7 @@ public class CookieTokenStore implements SecureTokenStore {
 	}
 
 	static byte[] sha256(String tokenId) {
-		try {
-			var sha256 = MessageDigest.getInstance("SHA-256");
-			return sha256.digest(tokenId.getBytes(StandardCharsets.UTF_8));
-		}
-		catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException(e);
-		}
+		return CryptoPrimitives.sha256(tokenId);
 	}
 
 	@Override
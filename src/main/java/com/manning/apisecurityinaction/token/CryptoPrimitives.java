@@ -0,0 +1,155 @@
+package com.manning.apisecurityinaction.token;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Base64;
+import javax.crypto.Mac;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Initialised MessageDigest and Mac instances reused per thread, rather than looked up and keyed on every call.
+// The String methods encode into per-thread scratch buffers, so hashing a token ID allocates at most the result.
+public final class CryptoPrimitives {
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	private CryptoPrimitives() {}
+
+	public static byte[] sha256(byte[] data) {
+		return scratch.get().sha256.digest(data);
+	}
+
+	public static byte[] sha256(String data) {
+		var s = scratch.get();
+		var length = s.encode(data);
+		s.sha256.update(s.input, 0, length);
+		return s.sha256.digest();
+	}
+
+	// Base64url of the SHA-256 hash of data, allocating only the returned String.
+	public static String sha256Base64url(String data) {
+		var s = scratch.get();
+		var length = s.encode(data);
+		s.sha256.update(s.input, 0, length);
+		try {
+			s.sha256.digest(s.digest, 0, s.digest.length);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		return s.base64url(s.digest);
+	}
+
+	public static Hmac hmac(Key key) {
+		return new Hmac(key);
+	}
+
+	public static final class Hmac {
+		private final ThreadLocal<Mac> mac;
+		private final ThreadLocal<byte[]> tag;
+
+		private Hmac(Key key) {
+			// Fail fast on a bad key rather than on the first request.
+			newMac(key);
+			this.mac = ThreadLocal.withInitial(() -> newMac(key));
+			this.tag = ThreadLocal.withInitial(() -> new byte[mac.get().getMacLength()]);
+		}
+
+		private static Mac newMac(Key key) {
+			try {
+				var mac = Mac.getInstance(key.getAlgorithm());
+				mac.init(key);
+				return mac;
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		public byte[] compute(String data) {
+			var mac = this.mac.get();
+			var s = scratch.get();
+			var length = s.encode(data);
+			mac.update(s.input, 0, length);
+			return mac.doFinal();
+		}
+
+		public String computeBase64url(String data) {
+			return scratch.get().base64url(computeInto(data));
+		}
+
+		// Checks, in constant time, the Base64url tag starting at tagOffset in encoded against the MAC of data.
+		// Comparing encoded forms avoids decoding (and allocating) the provided tag.
+		public boolean verifyBase64url(String data, String encoded, int tagOffset) {
+			var s = scratch.get();
+			var length = encoder.encode(computeInto(data), s.output);
+			if (encoded.length() - tagOffset != length) {
+				return false;
+			}
+			var diff = 0;
+			for (int i = 0; i < length; i++) {
+				diff |= encoded.charAt(tagOffset + i) ^ (s.output[i] & 0xFF);
+			}
+			return diff == 0;
+		}
+
+		private byte[] computeInto(String data) {
+			var mac = this.mac.get();
+			var s = scratch.get();
+			var tag = this.tag.get();
+			var length = s.encode(data);
+			mac.update(s.input, 0, length);
+			try {
+				mac.doFinal(tag, 0);
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+			return tag;
+		}
+	}
+
+	private static final class Scratch {
+		private final MessageDigest sha256;
+		private final byte[] digest = new byte[32];
+		private byte[] input = new byte[256];
+		// Large enough for the Base64url encoding of any SHA-256 or HMAC-SHA512 output.
+		private final byte[] output = new byte[88];
+
+		private Scratch() {
+			try {
+				this.sha256 = MessageDigest.getInstance("SHA-256");
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		// UTF-8 encode into the input buffer, returning the length. Token IDs are ASCII, so that path copies directly.
+		private int encode(String data) {
+			var length = data.length();
+			if (input.length < length) {
+				input = new byte[Math.max(length, input.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				var c = data.charAt(i);
+				if (c >= 0x80) {
+					var bytes = data.getBytes(UTF_8);
+					if (input.length < bytes.length) {
+						input = new byte[bytes.length];
+					}
+					System.arraycopy(bytes, 0, input, 0, bytes.length);
+					return bytes.length;
+				}
+				input[i] = (byte) c;
+			}
+			return length;
+		}
+
+		private String base64url(byte[] data) {
+			var length = encoder.encode(data, output);
+			return new String(output, 0, length, ISO_8859_1);
+		}
+	}
+}
@@ -2,26 +2,77 @@ package com.manning.apisecurityinaction.token;
 
 import org.dalesbred.Database;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.Request;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.security.SecureRandom;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-public class DatabaseTokenStore implements ConfidentialTokenStore {
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+public class DatabaseTokenStore implements ConfidentialTokenStore, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseTokenStore.class);
+
 	private final Database database;
 	private final SecureRandom secureRandom;
+	// Decoded tokens keyed by hashed token ID, so repeat reads skip the tokens table.
+	private final Cache<String, Token> tokenCache;
+	private final ExpiredTokenPurger purger;
+	private final ScheduledExecutorService cleaner;
+	private final boolean writeJsonAttributes;
 
 	public DatabaseTokenStore(Database database) {
+		this(database, true);
+	}
+
+	// Pods still running code that only reads the JSON attributes column need writeJsonAttributes during a rolling
+	// deploy. Turn it off once none remain, so new rows store only the packed form.
+	public DatabaseTokenStore(Database database, boolean writeJsonAttributes) {
+		this(database, 10_000, Duration.ofMinutes(1), writeJsonAttributes);
+	}
+
+	public DatabaseTokenStore(Database database, long maxCachedTokens, Duration maxCacheTtl, boolean writeJsonAttributes) {
+		this(database, maxCachedTokens, maxCacheTtl, Duration.ofMinutes(10), 5_000, Duration.ofMillis(100),
+			Duration.ofMinutes(1), writeJsonAttributes);
+	}
+
+	// Expired tokens are purged every purgeInterval in batches of up to maxBatchSize rows, sized to take about
+	// targetBatchLatency each, for at most maxPurgeTime per run.
+	public DatabaseTokenStore(Database database, long maxCachedTokens, Duration maxCacheTtl, Duration purgeInterval,
+		int maxBatchSize, Duration targetBatchLatency, Duration maxPurgeTime, boolean writeJsonAttributes) {
 		this.database = database;
+		this.writeJsonAttributes = writeJsonAttributes;
 		this.secureRandom = new SecureRandom();
+		// Bound both size and age of cache entries. The TTL caps how long another pod's revocation can go unnoticed here.
+		// See https://guava.dev/releases/29.0-jre/api/docs/com/google/common/cache/CacheBuilder.html.
+		this.tokenCache = CacheBuilder.newBuilder()
+			.maximumSize(maxCachedTokens)
+			.expireAfterWrite(maxCacheTtl)
+			.recordStats()
+			.build();
 
-		// Clean up expired tokens every 10 min (after an initial 10-min delay).
-		Executors.newSingleThreadScheduledExecutor()
-			.scheduleAtFixedRate(this::deleteExpiredTokens, 10, 10, TimeUnit.MINUTES);
+		this.purger = new ExpiredTokenPurger(database, maxBatchSize, targetBatchLatency, maxPurgeTime);
+		this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "expired-token-purger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Fixed delay, so a slow run can't queue up the next one behind it.
+		cleaner.scheduleWithFixedDelay(this::purgeQuietly, purgeInterval.toMillis(), purgeInterval.toMillis(),
+			TimeUnit.MILLISECONDS);
 	}
 
 	// See chapter 5.2.1 for discussion on how to generate secure token IDs.
@@ -34,27 +85,79 @@ public class DatabaseTokenStore implements ConfidentialTokenStore {
 	@Override
 	public String create(Request request, Token token) {
 		var tokenId = randomId();
-		var attrs = new JSONObject(token.attributes).toString();
+		var attrs = AttributeCodec.encode(token.attributes);
+		var jsonAttrs = jsonAttributes(token);
 
-		database.updateUnique("INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES (?, ?, ?, ?)",
-			hash(tokenId), token.username, token.expiry, attrs);
+		database.updateUnique("INSERT INTO tokens(token_id, user_id, expiry, packed_attributes, attributes) VALUES (?, ?, ?, ?, ?)",
+			hash(tokenId), token.username, token.expiry, attrs, jsonAttrs);
 
 		return tokenId;
 	}
 
+	// Insert all tokens with a single JDBC batch.
+	@Override
+	public List<String> createAll(Request request, List<Token> tokens) {
+		if (tokens.isEmpty()) {
+			return List.of();
+		}
+		var tokenIds = new ArrayList<String>(tokens.size());
+		var rows = new ArrayList<List<?>>(tokens.size());
+		for (var token : tokens) {
+			var tokenId = randomId();
+			var attrs = AttributeCodec.encode(token.attributes);
+			var jsonAttrs = jsonAttributes(token);
+			tokenIds.add(tokenId);
+			rows.add(Arrays.asList(hash(tokenId), token.username, token.expiry, attrs, jsonAttrs));
+		}
+
+		database.updateBatch("INSERT INTO tokens(token_id, user_id, expiry, packed_attributes, attributes) VALUES (?, ?, ?, ?, ?)", rows);
+
+		return tokenIds;
+	}
+
+	// NULL unless the rollout still needs the JSON column, see writeJsonAttributes.
+	private String jsonAttributes(Token token) {
+		return writeJsonAttributes ? new JSONObject(token.attributes).toString() : null;
+	}
+
 	@Override
 	public Optional<Token> read(Request request, String tokenId) {
-		return database.findOptional(this::readToken,
-			"SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?", hash(tokenId));
+		var hashedId = hash(tokenId);
+		var cached = tokenCache.getIfPresent(hashedId);
+		if (cached != null) {
+			// Never serve a token from cache past its own expiry.
+			if (Instant.now().isBefore(cached.expiry)) {
+				return Optional.of(copyOf(cached));
+			}
+			tokenCache.invalidate(hashedId);
+		}
+
+		var token = database.findOptional(this::readToken,
+			"SELECT user_id, expiry, packed_attributes, attributes FROM tokens WHERE token_id = ?", hashedId);
+		token.filter(t -> Instant.now().isBefore(t.expiry))
+			.ifPresent(t -> tokenCache.put(hashedId, copyOf(t)));
+		return token;
+	}
+
+	// Hand out copies so callers can't modify the attributes of a cached token.
+	private static Token copyOf(Token token) {
+		var copy = new Token(token.expiry, token.username);
+		copy.attributes.putAll(token.attributes);
+		return copy;
 	}
 
-	// Helper to reconstruct token from JSON.
+	// Helper to reconstruct token from its packed attributes, or from JSON for rows written before they were packed.
 	private Token readToken(ResultSet resultSet) throws SQLException {
 		var username = resultSet.getString(1);
 		var expiry = resultSet.getTimestamp(2).toInstant();
-		var json = new JSONObject(resultSet.getString(3));
-
 		var token = new Token(expiry, username);
+
+		var packed = resultSet.getBytes(3);
+		if (packed != null) {
+			AttributeCodec.decode(packed, token.attributes);
+			return token;
+		}
+		var json = new JSONObject(resultSet.getString(4));
 		for (var key : json.keySet()) {
 			token.attributes.put(key, json.getString(key));
 		}
@@ -64,16 +167,49 @@ public class DatabaseTokenStore implements ConfidentialTokenStore {
 	@Override
 	public void revoke(Request request, String tokenId) {
 		// Revoke a token on logout by deleting it from the database.
-		database.update("DELETE FROM tokens WHERE token_id = ?", hash(tokenId));
+		var hashedId = hash(tokenId);
+		tokenCache.invalidate(hashedId);
+		database.update("DELETE FROM tokens WHERE token_id = ?", hashedId);
+	}
+
+	// Returns the number of expired rows deleted. Any left over after maxPurgeTime wait for the next run.
+	public long deleteExpiredTokens() throws InterruptedException {
+		// Drop cached tokens that have expired along with their rows.
+		var now = Instant.now();
+		tokenCache.asMap().values().removeIf(token -> !now.isBefore(token.expiry));
+		return purger.purge();
+	}
+
+	private void purgeQuietly() {
+		try {
+			deleteExpiredTokens();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (RuntimeException e) {
+			logger.warn("Failed to purge expired tokens", e);
+		}
+	}
+
+	// Stops the purge, interrupting a run in progress between batches.
+	@Override
+	public void close() {
+		cleaner.shutdownNow();
+	}
+
+	// Purge throughput, backlog and lag.
+	public JSONObject purgeMetrics() {
+		return purger.metrics();
 	}
 
-	public void deleteExpiredTokens() {
-		database.update("DELETE FROM tokens WHERE expiry < current_timestamp");
+	// Hit, miss, and eviction counts for sizing the token cache.
+	public CacheStats cacheStats() {
+		return tokenCache.stats();
 	}
 
 	// See chapter 5.3.1 for discussion of hashing database tokens.
 	private String hash(String tokenId) {
-		var hash = CookieTokenStore.sha256(tokenId);
-		return Base64url.encode(hash);
+		return CryptoPrimitives.sha256Base64url(tokenId);
 	}
 }
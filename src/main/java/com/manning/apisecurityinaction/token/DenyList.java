@@ -0,0 +1,109 @@
+package com.manning.apisecurityinaction.token;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Revoked stateless tokens, by token hash, until they expire. Entries are grouped into buckets by expiry time,
+// so once every token in a bucket has expired the whole bucket is dropped, in memory and from token_deny_list.
+// Checks only read the in-memory buckets. Revocations on other pods are polled from the table each refreshInterval.
+// No token may outlive maxTokenLifetime, which bounds how long any entry is kept, even for tokens anyone can forge.
+public class DenyList implements AutoCloseable {
+	private final Database database;
+	private final long bucketSeconds;
+	private final Duration maxTokenLifetime;
+	private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+	private final IncrementalPoller poller;
+	private final AtomicLong revoked = new AtomicLong();
+
+	// Buckets are whole seconds, as expiry_bucket is derived from epoch seconds.
+	public DenyList(Database database, Duration bucketWidth, Duration refreshInterval, Duration maxTokenLifetime) {
+		if (bucketWidth.toSeconds() < 1) {
+			throw new IllegalArgumentException("bucket width must be at least one second");
+		}
+		this.database = database;
+		this.bucketSeconds = bucketWidth.toSeconds();
+		this.maxTokenLifetime = maxTokenLifetime;
+		this.poller = new IncrementalPoller("deny-list-refresher", "token deny list", refreshInterval,
+			() -> load("SELECT token_hash, expiry_bucket FROM token_deny_list WHERE expiry_bucket >= ?", bucket(Instant.now())),
+			this::refresh);
+	}
+
+	// Token IDs must be canonical, so that every spelling of a token that the store accepts maps to the same ID.
+	public boolean isRevoked(String tokenId, Instant expiry) {
+		if (beyondMaxLifetime(expiry, Instant.now())) {
+			return true; // Couldn't be revoked, so isn't accepted.
+		}
+		var bucket = buckets.get(bucket(expiry));
+		return bucket != null && bucket.contains(CryptoPrimitives.sha256Base64url(tokenId));
+	}
+
+	public void revoke(String tokenId, Instant expiry) {
+		var now = Instant.now();
+		if (!expiry.isAfter(now)) {
+			return; // Already expired, so already rejected.
+		}
+		if (beyondMaxLifetime(expiry, now)) {
+			throw new IllegalArgumentException("token expiry exceeds the maximum token lifetime");
+		}
+		var hash = CryptoPrimitives.sha256Base64url(tokenId);
+		var bucket = bucket(expiry);
+		database.update("MERGE INTO token_deny_list(token_hash, expiry_bucket, revoked_at) KEY(token_hash) " +
+			"VALUES (?, ?, current_timestamp)", hash, bucket);
+		add(bucket, hash);
+	}
+
+	private boolean beyondMaxLifetime(Instant expiry, Instant now) {
+		return expiry.isAfter(now.plus(maxTokenLifetime));
+	}
+
+	// A bucket holds tokens expiring in [bucket * width, (bucket + 1) * width).
+	private long bucket(Instant expiry) {
+		return Math.floorDiv(expiry.getEpochSecond(), bucketSeconds);
+	}
+
+	private void add(long bucket, String hash) {
+		if (buckets.computeIfAbsent(bucket, b -> ConcurrentHashMap.newKeySet()).add(hash)) {
+			revoked.incrementAndGet();
+		}
+	}
+
+	private void load(String sql, Object arg) {
+		database.findAll(row -> {
+			add(row.getLong(2), row.getString(1));
+			return null;
+		}, sql, arg);
+	}
+
+	private void refresh(Instant since) {
+		load("SELECT token_hash, expiry_bucket FROM token_deny_list WHERE revoked_at >= ?", since);
+
+		// Drop buckets whose tokens have all expired.
+		var firstLive = bucket(Instant.now());
+		var expired = buckets.headMap(firstLive);
+		for (var bucket : expired.values()) {
+			revoked.addAndGet(-bucket.size());
+		}
+		expired.clear();
+		database.update("DELETE FROM token_deny_list WHERE expiry_bucket < ?", firstLive);
+	}
+
+	@Override
+	public void close() {
+		poller.close();
+	}
+
+	public JSONObject metrics() {
+		return new JSONObject()
+			.put("revokedTokens", revoked.get())
+			.put("buckets", buckets.size())
+			// Worst case for a revocation on another pod to be seen here.
+			.put("lagMillis", poller.lagMillis());
+	}
+}
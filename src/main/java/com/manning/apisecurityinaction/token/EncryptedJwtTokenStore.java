@@ -1,5 +1,7 @@
 package com.manning.apisecurityinaction.token;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Optional;
 import java.util.Date;
 import java.util.Set;
@@ -14,10 +16,27 @@ import spark.Request;
 public class EncryptedJwtTokenStore implements SecureTokenStore {
 	private final SecretKey encKey;
 	private final DatabaseTokenStore tokenAllowList;
+	private final RevocationFilter revocationFilter;
+	private final Duration maxTokenLifetime;
 
 	public EncryptedJwtTokenStore(SecretKey encKey, DatabaseTokenStore tokenAllowList) {
+		this(encKey, tokenAllowList, null, Duration.ZERO);
+	}
+
+	// With a revocation filter, only tokens the filter says might be revoked are checked against the allow list.
+	// Revocations on other pods are then honoured after the filter's refresh lag rather than immediately, and a
+	// possibly revoked token is read through the allow list's cache, which can add up to its TTL (a minute by
+	// default) on top. The filter's lagMillis metric doesn't include that.
+	// The filter only sees revocations made through revoke() since it was deployed. Tokens that could have been
+	// issued before then, judging by their expiry and maxTokenLifetime, are always checked against the allow list,
+	// as their revocation may only have deleted the allow list row. Deleting allow list rows directly no longer
+	// revokes newer tokens: go through revoke(), or also add the token to revoked_tokens.
+	public EncryptedJwtTokenStore(SecretKey encKey, DatabaseTokenStore tokenAllowList, RevocationFilter revocationFilter,
+		Duration maxTokenLifetime) {
 		this.encKey = encKey;
 		this.tokenAllowList = tokenAllowList;
+		this.revocationFilter = revocationFilter;
+		this.maxTokenLifetime = maxTokenLifetime;
 	}
 
 	@Override
@@ -57,16 +76,16 @@ public class EncryptedJwtTokenStore implements SecureTokenStore {
 			jwt.decrypt(decrypter);
 
 			var claims = jwt.getJWTClaimsSet();
+			var expiry = claims.getExpirationTime().toInstant();
 			// Check if allowlist token has been revoked.
 			var jwtId = claims.getJWTID();
-			if (tokenAllowList.read(request, jwtId).isEmpty()) {
+			if (mightBeRevoked(jwtId, expiry) && tokenAllowList.read(request, jwtId).isEmpty()) {
 				return Optional.empty();
 			}
 			// Validate other claims.
 			if (!claims.getAudience().contains("https://localhost:4567")) {
 				return Optional.empty();
 			}
-			var expiry = claims.getExpirationTime().toInstant();
 			var subject = claims.getSubject();
 			var token = new Token(expiry, subject);
 			var ignore = Set.of("exp", "sub", "aud");
@@ -82,6 +101,14 @@ public class EncryptedJwtTokenStore implements SecureTokenStore {
 		}
 	}
 
+	private boolean mightBeRevoked(String jwtId, Instant expiry) {
+		if (revocationFilter == null) {
+			return true;
+		}
+		var earliestIssue = expiry.minus(maxTokenLifetime);
+		return earliestIssue.isBefore(revocationFilter.trackedSince()) || revocationFilter.mightBeRevoked(jwtId);
+	}
+
 	@Override
 	public void revoke(Request request, String tokenId) {
 		try {
@@ -92,6 +119,9 @@ public class EncryptedJwtTokenStore implements SecureTokenStore {
 			var claims = jwt.getJWTClaimsSet();
 			// Revoke JWT ID from database (allow list).
 			tokenAllowList.revoke(request, claims.getJWTID());
+			if (revocationFilter != null) {
+				revocationFilter.revoke(claims.getJWTID(), claims.getExpirationTime().toInstant());
+			}
 		}
 		catch (ParseException | JOSEException e) {
 			throw new IllegalArgumentException("invalid token", e);
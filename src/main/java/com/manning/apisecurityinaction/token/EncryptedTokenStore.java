@@ -1,6 +1,8 @@
 package com.manning.apisecurityinaction.token;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import java.security.Key;
 
 import software.pando.crypto.nacl.SecretBox;
@@ -21,6 +23,13 @@ public class EncryptedTokenStore implements SecureTokenStore {
 		return SecretBox.encrypt(encryptionKey, tokenId).toString();
 	}
 
+	@Override
+	public List<String> createAll(Request request, List<Token> tokens) {
+		return delegate.createAll(request, tokens).stream()
+			.map(tokenId -> SecretBox.encrypt(encryptionKey, tokenId).toString())
+			.collect(Collectors.toList());
+	}
+
 	@Override
 	public Optional<Token> read(Request request, String tokenId) {
 		var box = SecretBox.fromString(tokenId);
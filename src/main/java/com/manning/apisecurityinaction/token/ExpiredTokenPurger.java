@@ -0,0 +1,105 @@
+package com.manning.apisecurityinaction.token;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deletes expired rows from the tokens table in small batches, so no single statement holds locks for long
+// enough to stall concurrent create and read calls. The batch size adapts to keep each batch near a target
+// latency, the purger rests as long as each batch took before starting the next, and a run stops after
+// maxRunTime, leaving any backlog for the next run.
+class ExpiredTokenPurger {
+	private static final int MIN_BATCH_SIZE = 100;
+
+	private final Database database;
+	private final int maxBatchSize;
+	private final long targetBatchNanos;
+	private final long maxRunNanos;
+
+	// Only touched by the purging thread, but read by metrics().
+	private volatile int batchSize;
+	private volatile Instant lastRun;
+	private volatile long lastRunRows;
+	private volatile long lastRunMillis;
+	private volatile boolean lastRunFinished = true;
+	private volatile Instant oldestExpired;
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong totalRows = new AtomicLong();
+
+	ExpiredTokenPurger(Database database, int maxBatchSize, Duration targetBatchLatency, Duration maxRunTime) {
+		this.database = database;
+		this.maxBatchSize = Math.max(MIN_BATCH_SIZE, maxBatchSize);
+		this.targetBatchNanos = targetBatchLatency.toNanos();
+		this.maxRunNanos = maxRunTime.toNanos();
+		this.batchSize = Math.min(1_000, this.maxBatchSize);
+	}
+
+	// Returns the number of rows deleted.
+	long purge() throws InterruptedException {
+		// Fix the cutoff so a run ends even while tokens keep expiring.
+		var cutoff = Timestamp.from(Instant.now());
+		var start = System.nanoTime();
+		long rows = 0;
+		boolean finished = false;
+		try {
+			while (System.nanoTime() - start < maxRunNanos) {
+				var size = batchSize;
+				var batchStart = System.nanoTime();
+				int deleted = database.update("DELETE FROM tokens WHERE expiry < ? FETCH FIRST ? ROWS ONLY", cutoff, size);
+				var elapsed = System.nanoTime() - batchStart;
+				rows += deleted;
+				totalRows.addAndGet(deleted);
+				if (deleted < size) {
+					finished = true;
+					break;
+				}
+				adapt(size, elapsed);
+				// Leave the database to other work for as long as the batch took.
+				Thread.sleep(elapsed / 1_000_000, (int) (elapsed % 1_000_000));
+			}
+		}
+		finally {
+			runs.incrementAndGet();
+			lastRun = Instant.now();
+			lastRunRows = rows;
+			lastRunMillis = (System.nanoTime() - start) / 1_000_000;
+			lastRunFinished = finished;
+		}
+		oldestExpired = database.findOptional(Timestamp.class,
+				"SELECT expiry FROM tokens WHERE expiry < ? ORDER BY expiry FETCH FIRST 1 ROW ONLY", cutoff)
+			.map(Timestamp::toInstant).orElse(null);
+		return rows;
+	}
+
+	// Additive increase while batches are fast, multiplicative decrease when they are slow.
+	private void adapt(int size, long elapsedNanos) {
+		if (elapsedNanos > targetBatchNanos) {
+			batchSize = Math.max(MIN_BATCH_SIZE, size / 2);
+		}
+		else if (elapsedNanos < targetBatchNanos / 2) {
+			batchSize = Math.min(maxBatchSize, size + Math.max(MIN_BATCH_SIZE, size / 4));
+		}
+	}
+
+	JSONObject metrics() {
+		var lastRun = this.lastRun;
+		var oldestExpired = this.oldestExpired;
+		return new JSONObject()
+			.put("runs", runs.get())
+			.put("deletedRows", totalRows.get())
+			.put("batchSize", batchSize)
+			.put("lastRun", lastRun == null ? JSONObject.NULL : lastRun.toString())
+			.put("lastRunRows", lastRunRows)
+			.put("lastRunMillis", lastRunMillis)
+			.put("lastRunRowsPerSecond", lastRunMillis == 0 ? 0 : lastRunRows * 1_000 / lastRunMillis)
+			// False if the last run hit its time cap with expired rows left over.
+			.put("lastRunFinished", lastRunFinished)
+			// How long the oldest expired row left behind by the last run had been expired at that time.
+			.put("lagSeconds", oldestExpired == null || lastRun == null ? 0
+				: Duration.between(oldestExpired, lastRun).toSeconds());
+	}
+}
@@ -1,20 +1,18 @@
 package com.manning.apisecurityinaction.token;
 
+import java.util.List;
 import java.util.Optional;
-import javax.crypto.Mac;
-import java.security.MessageDigest;
+import java.util.stream.Collectors;
 import java.security.Key;
-import java.security.GeneralSecurityException;
-import java.nio.charset.StandardCharsets;
 import spark.Request;
 
 public class HmacTokenStore implements SecureTokenStore {
 	private final TokenStore delegate;
-	private final Key macKey;
+	private final CryptoPrimitives.Hmac hmac;
 
 	private HmacTokenStore(TokenStore delegate, Key macKey) {
 		this.delegate = delegate;
-		this.macKey = macKey;
+		this.hmac = CryptoPrimitives.hmac(macKey);
 	}
 
 	// See chapter 6.4 for further detail regarding these factory methods for secure API design.
@@ -29,20 +27,15 @@ public class HmacTokenStore implements SecureTokenStore {
 	@Override
 	public String create(Request request, Token token) {
 		var tokenId = delegate.create(request, token);
-		var tag = hmac(tokenId);
 
-		return tokenId + '.' + Base64url.encode(tag);
+		return tokenId + '.' + hmac.computeBase64url(tokenId);
 	}
 
-	private byte[] hmac(String tokenId) {
-		try {
-			var mac = Mac.getInstance(macKey.getAlgorithm());
-			mac.init(macKey);
-			return mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
-		}
-		catch (GeneralSecurityException e) {
-			throw new RuntimeException(e);
-		}
+	@Override
+	public List<String> createAll(Request request, List<Token> tokens) {
+		return delegate.createAll(request, tokens).stream()
+			.map(tokenId -> tokenId + '.' + hmac.computeBase64url(tokenId))
+			.collect(Collectors.toList());
 	}
 
 	@Override
@@ -53,10 +46,8 @@ public class HmacTokenStore implements SecureTokenStore {
 		}
 
 		var realTokenId = tokenId.substring(0, index);
-		var provided = Base64url.decode(tokenId.substring(index + 1));
-		var computed = hmac(realTokenId);
 
-		if (!MessageDigest.isEqual(provided, computed)) {
+		if (!hmac.verifyBase64url(realTokenId, tokenId, index + 1)) {
 			return Optional.empty();
 		}
 
@@ -71,10 +62,8 @@ public class HmacTokenStore implements SecureTokenStore {
 		}
 
 		var realTokenId = tokenId.substring(0, index);
-		var provided = Base64url.decode(tokenId.substring(index + 1));
-		var computed = hmac(realTokenId);
 
-		if (!MessageDigest.isEqual(provided, computed)) {
+		if (!hmac.verifyBase64url(realTokenId, tokenId, index + 1)) {
 			return;
 		}
 
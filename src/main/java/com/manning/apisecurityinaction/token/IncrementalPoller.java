@@ -0,0 +1,86 @@
+package com.manning.apisecurityinaction.token;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Keeps an in-memory copy of a table up to date by polling for rows changed since the last poll, on a daemon thread.
+// Loads run one at a time. Whatever the owner loads, lagMillis() bounds how stale it may be.
+class IncrementalPoller implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(IncrementalPoller.class);
+	// Re-read rows changed slightly before the last poll, in case they committed after it
+	// or the database clock is a little ahead of this pod's.
+	private static final Duration OVERLAP = Duration.ofSeconds(5);
+
+	private final String description;
+	private final Duration refreshInterval;
+	private final Consumer<Instant> loadChangesSince;
+	private final ScheduledExecutorService refresher;
+	private volatile Instant loadedUntil;
+	private volatile Instant lastRefresh;
+
+	// Runs initialLoad now, then passes loadChangesSince the time to poll from every refreshInterval.
+	IncrementalPoller(String threadName, String description, Duration refreshInterval, Runnable initialLoad,
+		Consumer<Instant> loadChangesSince) {
+		this.description = description;
+		this.refreshInterval = refreshInterval;
+		this.loadChangesSince = loadChangesSince;
+		reload(initialLoad);
+
+		this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refresh, refreshInterval.toMillis(), refreshInterval.toMillis(),
+			TimeUnit.MILLISECONDS);
+	}
+
+	// Also replace everything with a full load every rebuildInterval, e.g. to drop rows that polling can't remove.
+	void scheduleRebuild(Runnable fullLoad, Duration rebuildInterval) {
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				reload(fullLoad);
+			}
+			catch (RuntimeException e) {
+				logger.warn("Failed to rebuild {}", description, e);
+			}
+		}, rebuildInterval.toMillis(), rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void reload(Runnable fullLoad) {
+		var now = Instant.now();
+		fullLoad.run();
+		loadedUntil = now.minus(OVERLAP);
+		lastRefresh = now;
+	}
+
+	private synchronized void refresh() {
+		try {
+			var now = Instant.now();
+			loadChangesSince.accept(loadedUntil);
+			loadedUntil = now.minus(OVERLAP);
+			lastRefresh = now;
+		}
+		catch (RuntimeException e) {
+			// Keep what was loaded. The reported lag grows until the database is back.
+			logger.warn("Failed to refresh {}", description, e);
+		}
+	}
+
+	// Worst case for a change made on another pod to be loaded here.
+	long lagMillis() {
+		return Duration.between(lastRefresh, Instant.now()).plus(refreshInterval).toMillis();
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+}
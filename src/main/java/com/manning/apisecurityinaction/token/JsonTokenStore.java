@@ -8,6 +8,17 @@ import org.json.JSONObject;
 import org.json.JSONException;
 
 public class JsonTokenStore implements TokenStore {
+	private final DenyList denyList;
+
+	// Tokens can't be revoked without a deny list.
+	public JsonTokenStore() {
+		this(null);
+	}
+
+	public JsonTokenStore(DenyList denyList) {
+		this.denyList = denyList;
+	}
+
 	@Override
 	public String create(Request request, Token token) {
 		var json = new JSONObject();
@@ -25,6 +36,9 @@ public class JsonTokenStore implements TokenStore {
 			var decoded = Base64url.decode(tokenId);
 			var json = new JSONObject(new String(decoded, UTF_8));
 			var expiry = Instant.ofEpochSecond(json.getInt("exp"));
+			if (denyList != null && denyList.isRevoked(canonicalId(decoded), expiry)) {
+				return Optional.empty();
+			}
 			var username = json.getString("sub");
 			var attrs = json.getJSONObject("attrs");
 
@@ -42,6 +56,16 @@ public class JsonTokenStore implements TokenStore {
 
 	@Override
 	public void revoke(Request request, String tokenId) {
-		// TODO
+		// These tokens are unsigned, so anyone can revoke a forged one. The deny list's cap on token lifetime
+		// bounds how long such entries are kept.
+		if (denyList != null) {
+			read(request, tokenId).ifPresent(token -> denyList.revoke(canonicalId(Base64url.decode(tokenId)), token.expiry));
+		}
+	}
+
+	// Unused low bits in the last base64url character let one token be spelled several ways, so revoke the
+	// re-encoded bytes rather than the string as presented.
+	private static String canonicalId(byte[] decoded) {
+		return Base64url.encode(decoded);
 	}
 }
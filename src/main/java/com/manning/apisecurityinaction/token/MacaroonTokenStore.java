@@ -1,6 +1,8 @@
 package com.manning.apisecurityinaction.token;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import java.security.Key;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -39,6 +41,14 @@ public class MacaroonTokenStore implements SecureTokenStore {
 		return macaroon.serialize(); // Return serialized URL-safe string form of macaroon.
 	}
 
+	@Override
+	public List<String> createAll(Request request, List<Token> tokens) {
+		// Let delegate store create all identifiers in one operation, then build a macaroon for each.
+		return delegate.createAll(request, tokens).stream()
+			.map(identifier -> MacaroonsBuilder.create("", macKey.getEncoded(), identifier).serialize())
+			.collect(Collectors.toList());
+	}
+
 	@Override
 	public Optional<Token> read(Request request, String tokenId) {
 		var macaroon = MacaroonsBuilder.deserialize(tokenId);
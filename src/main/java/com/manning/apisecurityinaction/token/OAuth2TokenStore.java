@@ -10,7 +10,10 @@ import java.util.Base64;
 import java.util.Optional;
 import java.io.IOException;
 import java.io.FileInputStream;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManagerFactory;
@@ -25,19 +28,49 @@ import com.manning.apisecurityinaction.controller.UserController;
 import spark.Request;
 import org.json.JSONObject;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 public class OAuth2TokenStore implements SecureTokenStore {
 	private final URI introspectionEndpoint;
 	private final String authorization;
 
 	private final HttpClient httpClient;
 
+	// Introspection results by token hash. Active results are kept until the token's exp, but no longer than
+	// maxCacheTtl, which bounds how long a token revoked at the AS is still accepted. Inactive results are kept briefly.
+	private final Duration negativeCacheTtl;
+	private final Cache<String, Introspection> introspectionCache;
+	private final AtomicLong coalescedWaiters = new AtomicLong();
+
 	public OAuth2TokenStore(URI introspectionEndpoint, String clientId, String clientSecret) {
+		this(introspectionEndpoint, clientId, clientSecret, tlsClient());
+	}
+
+	// Allows a preconfigured client, e.g. a plain HTTP client for a local stub AS in benchmarks.
+	public OAuth2TokenStore(URI introspectionEndpoint, String clientId, String clientSecret, HttpClient httpClient) {
+		this(introspectionEndpoint, clientId, clientSecret, httpClient, Duration.ofMinutes(1), Duration.ofSeconds(10));
+	}
+
+	public OAuth2TokenStore(URI introspectionEndpoint, String clientId, String clientSecret, HttpClient httpClient,
+		Duration maxCacheTtl, Duration negativeCacheTtl) {
 		this.introspectionEndpoint = introspectionEndpoint;
+		this.negativeCacheTtl = negativeCacheTtl;
+		this.introspectionCache = CacheBuilder.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterWrite(maxCacheTtl)
+			.recordStats()
+			.build();
 
 		// To avoid historical issues with ambiguous character sets, OAuth2 requires that HTTP Basic authentication credentials are first URL-encoded (as UTF-8) before being Base64-encoded.
 		var credentials = URLEncoder.encode(clientId, UTF_8) + ":" + URLEncoder.encode(clientSecret, UTF_8);
 		this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8));
+		this.httpClient = httpClient;
+	}
 
+	private static HttpClient tlsClient() {
 		var sslParams = new SSLParameters();
 		// See Mozilla "intermediate" configuration at https://wiki.mozilla.org/Security/Server_Side_TLS.
 		sslParams.setProtocols(new String[] { "TLSv1.3", "TLSv1.2" });
@@ -63,7 +96,7 @@ public class OAuth2TokenStore implements SecureTokenStore {
 			var sslContext = SSLContext.getInstance("TLS");
 			sslContext.init(null, tmf.getTrustManagers(), null);
 
-			this.httpClient = HttpClient.newBuilder()
+			return HttpClient.newBuilder()
 				.sslParameters(sslParams)
 				.sslContext(sslContext)
 				.build();
@@ -89,6 +122,57 @@ public class OAuth2TokenStore implements SecureTokenStore {
 			return Optional.empty();
 		}
 
+		// Key on a hash, so the cache doesn't hold usable access tokens.
+		var key = CryptoPrimitives.sha256Base64url(tokenId);
+		var introspection = introspect(key, tokenId);
+
+		if (introspection.response == null) {
+			return Optional.empty();
+		}
+		// Certificate binding depends on this request's client certificate, so check it every time.
+		return processResponse(introspection.response, request);
+	}
+
+	public CacheStats cacheStats() {
+		return introspectionCache.stats();
+	}
+
+	public long coalescedWaiters() {
+		return coalescedWaiters.get();
+	}
+
+	// Concurrent reads of the same token share one call to the introspection endpoint: the cache runs one loader
+	// per key and makes other callers wait for it. An entry past its own TTL is replaced by a new call.
+	private Introspection introspect(String key, String tokenId) {
+		var start = System.nanoTime();
+		while (true) {
+			var called = new boolean[1];
+			Introspection introspection;
+			try {
+				introspection = introspectionCache.get(key, () -> {
+					called[0] = true;
+					return callIntrospectionEndpoint(tokenId);
+				});
+			}
+			catch (ExecutionException | UncheckedExecutionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+			}
+			var calledForThisRead = introspection.calledSince(start);
+			if (introspection.isFresh() || calledForThisRead) {
+				if (calledForThisRead && !called[0]) {
+					coalescedWaiters.incrementAndGet();
+				}
+				if (!introspection.isFresh()) {
+					// Not cacheable, e.g. an error from the AS. Only the reads that waited for it share it.
+					introspectionCache.asMap().remove(key, introspection);
+				}
+				return introspection;
+			}
+			introspectionCache.asMap().remove(key, introspection);
+		}
+	}
+
+	private Introspection callIntrospectionEndpoint(String tokenId) {
 		var form = "token=" + URLEncoder.encode(tokenId, UTF_8) + "&token_type_hint=access_token";
 
 		var httpRequest = HttpRequest.newBuilder()
@@ -105,8 +189,10 @@ public class OAuth2TokenStore implements SecureTokenStore {
 				var json = new JSONObject(httpResponse.body());
 
 				if (json.getBoolean("active")) {
-					return processResponse(json, request);
+					var untilExpiry = Duration.between(Instant.now(), Instant.ofEpochSecond(json.getLong("exp")));
+					return new Introspection(json, untilExpiry);
 				}
+				return new Introspection(null, negativeCacheTtl);
 			}
 		}
 		catch (IOException e) {
@@ -117,7 +203,8 @@ public class OAuth2TokenStore implements SecureTokenStore {
 			throw new RuntimeException(e);
 		}
 
-		return Optional.empty();
+		// Don't cache errors from the AS.
+		return new Introspection(null, Duration.ZERO);
 	}
 
 	private Optional<Token> processResponse(JSONObject response, Request originalRequest) {
@@ -158,12 +245,32 @@ public class OAuth2TokenStore implements SecureTokenStore {
 
 	private byte[] thumbprint(X509Certificate certificate) {
 		try {
-			var sha256 = MessageDigest.getInstance("SHA-256");
 			// Hash the bytes of the entire certificate.
-			return sha256.digest(certificate.getEncoded());
+			return CryptoPrimitives.sha256(certificate.getEncoded());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	// An introspection response, or null if the token is inactive, and when to stop trusting it.
+	private static class Introspection {
+		private final JSONObject response;
+		private final long calledAt;
+		private final long expiresAt;
+
+		private Introspection(JSONObject response, Duration ttl) {
+			this.response = response;
+			this.calledAt = System.nanoTime();
+			this.expiresAt = calledAt + ttl.toNanos();
+		}
+
+		private boolean isFresh() {
+			return System.nanoTime() - expiresAt < 0;
+		}
+
+		private boolean calledSince(long nanoTime) {
+			return calledAt - nanoTime >= 0;
+		}
+	}
 }
@@ -0,0 +1,119 @@
+package com.manning.apisecurityinaction.token;
+
+import java.io.IOException;
+import java.net.URL;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A JWK set fetched from a URL and refreshed in the background, serving the last good copy meanwhile
+// (stale-while-revalidate), so requests never wait on the JWKS endpoint except for the very first fetch.
+// An unknown key ID triggers an early background refresh, at most once per minRefreshInterval,
+// so a rotated-in key is picked up without letting unknown kids hammer the endpoint.
+class RefreshingJWKSource implements JWKSource<SecurityContext>, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(RefreshingJWKSource.class);
+	private static final int TIMEOUT_MILLIS = 2_000;
+	private static final int SIZE_LIMIT = 50 * 1024;
+
+	private final URL jwkSetUrl;
+	private final long minRefreshIntervalNanos;
+	private final ScheduledExecutorService refresher;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private final AtomicLong lastRefreshAttempt = new AtomicLong(System.nanoTime());
+	private volatile JWKSet jwkSet;
+
+	RefreshingJWKSource(URL jwkSetUrl, Duration refreshInterval, Duration minRefreshInterval) {
+		this.jwkSetUrl = jwkSetUrl;
+		this.minRefreshIntervalNanos = minRefreshInterval.toNanos();
+		this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "jwks-refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refresh, refreshInterval.toMillis(), refreshInterval.toMillis(),
+			TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public List<JWK> get(JWKSelector selector, SecurityContext context) throws KeySourceException {
+		var current = jwkSet;
+		if (current == null) {
+			current = initialLoad();
+		}
+		var matches = selector.select(current);
+		if (matches.isEmpty()) {
+			refreshSoon();
+		}
+		return matches;
+	}
+
+	// Whether the last fetched set still has a key with this ID, without fetching.
+	boolean hasKey(String keyId) {
+		var current = jwkSet;
+		return current != null && current.getKeyByKeyId(keyId) != null;
+	}
+
+	private synchronized JWKSet initialLoad() throws KeySourceException {
+		if (jwkSet == null) {
+			try {
+				jwkSet = load();
+			}
+			catch (IOException e) {
+				throw new KeySourceException("Couldn't fetch JWK set from " + jwkSetUrl, e);
+			}
+		}
+		return jwkSet;
+	}
+
+	private void refreshSoon() {
+		var last = lastRefreshAttempt.get();
+		if (System.nanoTime() - last >= minRefreshIntervalNanos && lastRefreshAttempt.compareAndSet(last, System.nanoTime())) {
+			refresher.execute(this::refresh);
+		}
+	}
+
+	private void refresh() {
+		if (!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			lastRefreshAttempt.set(System.nanoTime());
+			jwkSet = load();
+		}
+		catch (IOException | RuntimeException e) {
+			// Keep serving the stale set until the endpoint recovers.
+			logger.warn("Failed to refresh JWK set from {}", jwkSetUrl, e);
+		}
+		finally {
+			refreshing.set(false);
+		}
+	}
+
+	private JWKSet load() throws IOException {
+		try {
+			return JWKSet.load(jwkSetUrl, TIMEOUT_MILLIS, TIMEOUT_MILLIS, SIZE_LIMIT);
+		}
+		catch (ParseException e) {
+			throw new IOException("Invalid JWK set from " + jwkSetUrl, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+}
@@ -0,0 +1,101 @@
+package com.manning.apisecurityinaction.token;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+// A per-pod Bloom filter of revoked token IDs, loaded from the revoked_tokens table.
+// A token that isn't in the filter is certainly not revoked (as of the last refresh), so only possible
+// revocations, including the configured false-positive rate of other tokens, need an exact database check.
+// Other pods' revocations show up within one refresh interval: that is the propagation lag.
+public class RevocationFilter implements AutoCloseable {
+	private final Database database;
+	private final long expectedRevocations;
+	private final double falsePositiveRate;
+	private final IncrementalPoller poller;
+	private final Instant trackedSince;
+
+	private volatile BloomFilter<CharSequence> filter;
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong possiblyRevoked = new AtomicLong();
+
+	// Size for the number of unexpired revoked tokens expected at once. The filter is rebuilt from the
+	// table every rebuildInterval, dropping expired revocations, which a Bloom filter can't remove.
+	public RevocationFilter(Database database, long expectedRevocations, double falsePositiveRate,
+		Duration refreshInterval, Duration rebuildInterval) {
+		this.database = database;
+		this.expectedRevocations = expectedRevocations;
+		this.falsePositiveRate = falsePositiveRate;
+		this.trackedSince = database.findUnique(Timestamp.class,
+			"SELECT applied_at FROM schema_version WHERE version = 4").toInstant();
+		this.poller = new IncrementalPoller("revocation-filter-refresher", "revocation filter", refreshInterval,
+			this::rebuild, this::loadRevokedSince);
+		poller.scheduleRebuild(this::rebuild, rebuildInterval);
+	}
+
+	// False means the token is not revoked. True means it might be, and needs an exact check.
+	public boolean mightBeRevoked(String tokenId) {
+		checks.incrementAndGet();
+		if (filter.mightContain(hash(tokenId))) {
+			possiblyRevoked.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	// When migration V4 created revoked_tokens. Revocations before then aren't in the filter.
+	public Instant trackedSince() {
+		return trackedSince;
+	}
+
+	// Record a revocation for all pods, and in this pod's filter at once.
+	public void revoke(String tokenId, Instant expiry) {
+		var hash = hash(tokenId);
+		database.update("MERGE INTO revoked_tokens(token_hash, expiry, revoked_at) KEY(token_hash) VALUES (?, ?, current_timestamp)",
+			hash, expiry);
+		filter.put(hash);
+	}
+
+	private void rebuild() {
+		var fresh = BloomFilter.create(Funnels.stringFunnel(UTF_8), expectedRevocations, falsePositiveRate);
+		database.update("DELETE FROM revoked_tokens WHERE expiry < current_timestamp");
+		database.findAll(String.class, "SELECT token_hash FROM revoked_tokens").forEach(fresh::put);
+		this.filter = fresh;
+	}
+
+	private void loadRevokedSince(Instant since) {
+		var current = filter;
+		database.findAll(String.class, "SELECT token_hash FROM revoked_tokens WHERE revoked_at >= ?", since)
+			.forEach(current::put);
+	}
+
+	private static String hash(String tokenId) {
+		return CryptoPrimitives.sha256Base64url(tokenId);
+	}
+
+	@Override
+	public void close() {
+		poller.close();
+	}
+
+	public JSONObject metrics() {
+		var current = filter;
+		return new JSONObject()
+			.put("revocations", current.approximateElementCount())
+			.put("configuredFalsePositiveRate", falsePositiveRate)
+			.put("expectedFalsePositiveRate", current.expectedFpp())
+			.put("checks", checks.get())
+			.put("possiblyRevoked", possiblyRevoked.get())
+			// Worst case for a revocation on another pod to be seen by the filter. A token store that then reads
+			// through a cache, like DatabaseTokenStore, can add up to its cache TTL.
+			.put("lagMillis", poller.lagMillis());
+	}
+}
@@ -2,31 +2,55 @@ package com.manning.apisecurityinaction.token;
 
 import java.net.URI;
 import java.net.MalformedURLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Optional;
 import java.text.ParseException;
 import com.nimbusds.jose.*;
 import com.nimbusds.jose.proc.SecurityContext;
 import com.nimbusds.jose.proc.JWSVerificationKeySelector;
 import com.nimbusds.jose.proc.BadJOSEException;
-import com.nimbusds.jose.jwk.source.JWKSource;
-import com.nimbusds.jose.jwk.source.RemoteJWKSet;
 import com.nimbusds.jwt.*;
 import com.nimbusds.jwt.proc.DefaultJWTProcessor;
 import spark.Request;
 
-public class SignedJwtAccessTokenStore implements SecureTokenStore {
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+public class SignedJwtAccessTokenStore implements SecureTokenStore, AutoCloseable {
 	private final String expectedIssuer;
 	private final String expectedAudience;
-	private final JWSAlgorithm signatureAlgorithm;
-	private final JWKSource<SecurityContext> jwkSource;
+	private final RefreshingJWKSource jwkSource;
+	// Thread-safe once configured, so built once and shared by all requests.
+	private final DefaultJWTProcessor<SecurityContext> verifier;
+	// Tokens that passed verification, by token hash, so repeat requests skip the signature check.
+	private final Cache<String, VerifiedToken> verifiedClaims;
 
 	public SignedJwtAccessTokenStore(String expectedIssuer, String expectedAudience, 
 		JWSAlgorithm signatureAlgorithm, URI jwkSetUri) throws MalformedURLException {
+		this(expectedIssuer, expectedAudience, signatureAlgorithm, jwkSetUri, Duration.ofMinutes(5), 10_000);
+	}
+
+	// A maxCachedTokens of 0 verifies the signature on every read.
+	public SignedJwtAccessTokenStore(String expectedIssuer, String expectedAudience, JWSAlgorithm signatureAlgorithm,
+		URI jwkSetUri, Duration jwksRefreshInterval, long maxCachedTokens) throws MalformedURLException {
 
 		this.expectedIssuer = expectedIssuer;
 		this.expectedAudience = expectedAudience;
-		this.signatureAlgorithm = signatureAlgorithm;
-		this.jwkSource = new RemoteJWKSet<>(jwkSetUri.toURL());
+		this.jwkSource = new RefreshingJWKSource(jwkSetUri.toURL(), jwksRefreshInterval, Duration.ofSeconds(30));
+		this.verifier = new DefaultJWTProcessor<>();
+		verifier.setJWSKeySelector(new JWSVerificationKeySelector<>(signatureAlgorithm, jwkSource));
+		this.verifiedClaims = CacheBuilder.newBuilder()
+			.maximumSize(maxCachedTokens)
+			// Expiry is checked on each read, this just stops long-lived tokens lingering.
+			.expireAfterWrite(Duration.ofHours(1))
+			.recordStats()
+			.build();
+	}
+
+	public CacheStats cacheStats() {
+		return verifiedClaims.stats();
 	}
 
 	@Override
@@ -37,20 +61,37 @@ public class SignedJwtAccessTokenStore implements SecureTokenStore {
 	@Override
 	public Optional<Token> read(Request request, String tokenId) {
 		try {
-			var verifier = new DefaultJWTProcessor<>();
-			var keySelector = new JWSVerificationKeySelector<>(signatureAlgorithm, jwkSource);
-			verifier.setJWSKeySelector(keySelector);
-
-			// Verify signature and expiration.
-			var claims = verifier.process(tokenId, null);
-
-			// Verify iss and aud claims.
-			if (!expectedIssuer.equals(claims.getIssuer())) {
-				return Optional.empty();
+			// Only tokens that verified are cached, so forged tokens can't fill the cache.
+			var key = CryptoPrimitives.sha256Base64url(tokenId);
+			var cached = verifiedClaims.getIfPresent(key);
+			if (cached != null && !jwkSource.hasKey(cached.keyId)) {
+				// The signing key has been withdrawn from the JWK set, so verify again, which will now fail.
+				verifiedClaims.invalidate(key);
+				cached = null;
 			}
-			if (!claims.getAudience().contains(expectedAudience)) {
+			var claims = cached == null ? null : cached.claims;
+			if (claims != null && !claims.getExpirationTime().toInstant().isAfter(Instant.now())) {
+				verifiedClaims.invalidate(key);
 				return Optional.empty();
 			}
+			if (claims == null) {
+				// Verify signature and expiration.
+				var jwt = SignedJWT.parse(tokenId);
+				claims = verifier.process(jwt, null);
+
+				// Verify iss and aud claims.
+				if (!expectedIssuer.equals(claims.getIssuer())) {
+					return Optional.empty();
+				}
+				if (!claims.getAudience().contains(expectedAudience)) {
+					return Optional.empty();
+				}
+				// Without a key ID there's no telling whether the signing key has since been withdrawn.
+				var keyId = jwt.getHeader().getKeyID();
+				if (claims.getExpirationTime() != null && keyId != null) {
+					verifiedClaims.put(key, new VerifiedToken(claims, keyId));
+				}
+			}
 
 			var expiry = claims.getExpirationTime().toInstant();
 			var subject = claims.getSubject();
@@ -76,4 +117,20 @@ public class SignedJwtAccessTokenStore implements SecureTokenStore {
 	public void revoke(Request request, String tokenId) {
 		throw new UnsupportedOperationException();
 	}
+
+	// Stop refreshing the JWK set.
+	@Override
+	public void close() {
+		jwkSource.close();
+	}
+
+	private static class VerifiedToken {
+		private final JWTClaimsSet claims;
+		private final String keyId;
+
+		private VerifiedToken(JWTClaimsSet claims, String keyId) {
+			this.claims = claims;
+			this.keyId = keyId;
+		}
+	}
 }
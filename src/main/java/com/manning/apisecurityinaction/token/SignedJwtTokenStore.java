@@ -5,6 +5,7 @@ import java.util.Optional;
 import java.util.Date;
 import java.text.ParseException;
 import com.nimbusds.jose.*;
+import com.nimbusds.jose.util.Base64URL;
 import com.nimbusds.jwt.*;
 import spark.Request;
 
@@ -13,12 +14,20 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
 	private final JWSVerifier verifier;
 	private final JWSAlgorithm algorithm;
 	private final String audience;
+	private final DenyList denyList;
 
+	// Tokens can't be revoked without a deny list.
 	public SignedJwtTokenStore(JWSSigner signer, JWSVerifier verifier, JWSAlgorithm algorithm, String audience) {
+		this(signer, verifier, algorithm, audience, null);
+	}
+
+	public SignedJwtTokenStore(JWSSigner signer, JWSVerifier verifier, JWSAlgorithm algorithm, String audience,
+		DenyList denyList) {
 		this.signer = signer;
 		this.verifier = verifier;
 		this.algorithm = algorithm;
 		this.audience = audience;
+		this.denyList = denyList;
 	}
 
 	@Override
@@ -57,6 +66,9 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
 			}
 
 			var expiry = claims.getExpirationTime().toInstant();
+			if (denyList != null && denyList.isRevoked(canonicalId(jwt), expiry)) {
+				return Optional.empty();
+			}
 			var subject = claims.getSubject();
 			var token = new Token(expiry, subject);
 			var attrs = claims.getJSONObjectClaim("attrs");
@@ -71,6 +83,26 @@ public class SignedJwtTokenStore implements AuthenticatedTokenStore {
 
 	@Override
 	public void revoke(Request request, String tokenId) {
-		// TODO
+		// Only a genuine token is recorded, so forged ones can't fill the deny list.
+		if (denyList != null) {
+			read(request, tokenId).ifPresent(token -> denyList.revoke(canonicalId(parse(tokenId)), token.expiry));
+		}
+	}
+
+	// The last character of the base64url signature has unused low bits, so several spellings of a token decode to
+	// the same signature and all verify. Re-encoding the signature gives each token one identity to revoke.
+	// The header and payload need no such step, as the signature covers them exactly as sent.
+	private static String canonicalId(SignedJWT jwt) {
+		var parts = jwt.getParsedParts();
+		return parts[0] + "." + parts[1] + "." + Base64URL.encode(jwt.getSignature().decode());
+	}
+
+	private static SignedJWT parse(String tokenId) {
+		try {
+			return SignedJWT.parse(tokenId);
+		}
+		catch (ParseException e) {
+			throw new IllegalArgumentException("invalid token", e);
+		}
 	}
 }
@@ -1,6 +1,8 @@
 package com.manning.apisecurityinaction.token;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
@@ -11,6 +13,15 @@ public interface TokenStore {
 	Optional<Token> read(Request request, String tokenId);
 	void revoke(Request request, String tokenId);
 
+	// Create several tokens in one operation. Stores that can batch their writes should override this.
+	default List<String> createAll(Request request, List<Token> tokens) {
+		var tokenIds = new ArrayList<String>(tokens.size());
+		for (var token : tokens) {
+			tokenIds.add(create(request, token));
+		}
+		return tokenIds;
+	}
+
 	class Token {
 		public final Instant expiry;
 		public final String username;
@@ -0,0 +1,5 @@
+-- Serve space-scoped time range reads (findMessages) from one index instead of filtering the global time index by space.
+-- Lookups by (msg_id, space_id) are already served by the msg_id primary key.
+CREATE INDEX IF NOT EXISTS msg_space_time_idx ON messages(space_id, msg_time, msg_id);
+-- No query filters on msg_time alone any more.
+DROP INDEX IF EXISTS msg_timestamp_idx;
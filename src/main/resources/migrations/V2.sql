@@ -0,0 +1,8 @@
+-- Request counters for rate limits shared across API pods, see DatabaseRateCounters.
+CREATE TABLE IF NOT EXISTS rate_limits(
+	limit_key VARCHAR(255) NOT NULL,
+	window_id BIGINT NOT NULL,
+	hits BIGINT NOT NULL,
+	PRIMARY KEY (limit_key, window_id)
+);
+GRANT SELECT, INSERT, UPDATE, DELETE ON rate_limits TO natter_api_user;
@@ -0,0 +1,6 @@
+-- Bumped on every membership change, so each pod knows when to flush its PermissionCache.
+CREATE TABLE IF NOT EXISTS acl_version(
+	version BIGINT NOT NULL
+);
+INSERT INTO acl_version(version) SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM acl_version);
+GRANT SELECT, UPDATE ON acl_version TO natter_api_user;
@@ -0,0 +1,8 @@
+-- Hashes of revoked token IDs until they expire, loaded by each pod's RevocationFilter.
+CREATE TABLE IF NOT EXISTS revoked_tokens(
+	token_hash VARCHAR(99) PRIMARY KEY,
+	expiry TIMESTAMP NOT NULL,
+	revoked_at TIMESTAMP NOT NULL
+);
+CREATE INDEX IF NOT EXISTS revoked_at_idx ON revoked_tokens(revoked_at);
+GRANT SELECT, INSERT, UPDATE, DELETE ON revoked_tokens TO natter_api_user;
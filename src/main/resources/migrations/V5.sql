@@ -0,0 +1,10 @@
+-- Hashes of revoked stateless tokens, grouped by expiry bucket so a whole bucket is deleted once its tokens expire.
+-- Loaded by each pod's DenyList.
+CREATE TABLE IF NOT EXISTS token_deny_list(
+	token_hash VARCHAR(99) PRIMARY KEY,
+	expiry_bucket BIGINT NOT NULL,
+	revoked_at TIMESTAMP NOT NULL
+);
+CREATE INDEX IF NOT EXISTS deny_list_bucket_idx ON token_deny_list(expiry_bucket);
+CREATE INDEX IF NOT EXISTS deny_list_revoked_at_idx ON token_deny_list(revoked_at);
+GRANT SELECT, INSERT, UPDATE, DELETE ON token_deny_list TO natter_api_user;
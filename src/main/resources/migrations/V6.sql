@@ -0,0 +1,3 @@
+-- Token attributes in AttributeCodec's binary format. Rows written before this keep their JSON in attributes.
+ALTER TABLE tokens ADD COLUMN IF NOT EXISTS packed_attributes VARBINARY(4096);
+ALTER TABLE tokens ALTER COLUMN attributes SET NULL;
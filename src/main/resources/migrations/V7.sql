@@ -0,0 +1,2 @@
+-- Claim audit ids 100 at a time, see IdAllocator.
+ALTER SEQUENCE audit_id_seq INCREMENT BY 100;
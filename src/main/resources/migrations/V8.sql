@@ -0,0 +1,3 @@
+-- Claim space and message ids in blocks, see IdAllocator.
+ALTER SEQUENCE space_id_seq INCREMENT BY 10;
+ALTER SEQUENCE msg_id_seq INCREMENT BY 100;
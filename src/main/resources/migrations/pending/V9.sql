@@ -0,0 +1,5 @@
+-- Follow-up to V6, held back because Schema.migrate would apply it as soon as any pod starts. Move it to
+-- migrations/V9.sql (or the next free number) in the first release after every pod reads packed_attributes and
+-- runs with -Dtokens.writeJsonAttributes=false, so no pod needs the JSON copy of token attributes any more.
+-- Rows issued before V6 have no packed form and keep their JSON, which DatabaseTokenStore still reads.
+UPDATE tokens SET attributes = NULL WHERE packed_attributes IS NOT NULL;
@@ -0,0 +1,147 @@
+package com.manning.apisecurityinaction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+	// Longer than the limiter's 100ms window, so each round of requests is judged in a window of its own.
+	private static final long ROUND_MILLIS = 120;
+	private static final Duration TARGET_LATENCY = Duration.ofMillis(300);
+
+	@Test
+	void growsByOneEachWindowTheLimitIsInUseAndLatencyIsOnTarget() throws Exception {
+		var limiter = new ConcurrencyLimiter(10, 2, 12, TARGET_LATENCY);
+		for (var expected : List.of(11, 12, 12)) {
+			round(limiter, limit(limiter), ROUND_MILLIS);
+			assertEquals(expected, limit(limiter));
+		}
+	}
+
+	@Test
+	void doesNotGrowWhileTheLimitIsUnused() throws Exception {
+		var limiter = new ConcurrencyLimiter(10, 2, 100, TARGET_LATENCY);
+		for (int i = 0; i < 3; i++) {
+			round(limiter, 8, ROUND_MILLIS);
+			assertEquals(10, limit(limiter));
+		}
+	}
+
+	@Test
+	void backsOffMultiplicativelyDownToTheMinimumWhenLatencyIsOverTarget() throws Exception {
+		var limiter = new ConcurrencyLimiter(20, 15, 100, TARGET_LATENCY);
+		for (var expected : List.of(18, 16, 15, 15)) {
+			round(limiter, 1, TARGET_LATENCY.toMillis() + 50);
+			assertEquals(expected, limit(limiter));
+		}
+	}
+
+	@Test
+	void ignoresTimeSpentWaitingOnOtherServers() throws Exception {
+		var limiter = new ConcurrencyLimiter(20, 2, 100, TARGET_LATENCY);
+		var request = new StubRequest("GET", "/spaces/1/messages");
+		limiter.acquire(request, new StubResponse());
+		Thread.sleep(TARGET_LATENCY.toMillis() + 50);
+		request.attribute(ConcurrencyLimiter.UPSTREAM_WAIT_NANOS, TARGET_LATENCY.toNanos());
+		limiter.release(request, new StubResponse());
+		assertEquals(20, limit(limiter));
+	}
+
+	@Test
+	void shedsRequestsOverTheShareOfTheLimitForTheirRouteClass() {
+		var limiter = new ConcurrencyLimiter(10, 2, 100, TARGET_LATENCY);
+		assertEquals(10, admitted(limiter, "GET", "/spaces/1/messages"));
+		assertEquals(9, admitted(limiter, "POST", "/spaces/1/messages"));
+		assertEquals(5, admitted(limiter, "POST", "/users"));
+		assertEquals(3, limiter.metrics().getLong("shed"));
+	}
+
+	// Acquires until shed, checks the 503, then releases everything.
+	private static int admitted(ConcurrencyLimiter limiter, String method, String path) {
+		var requests = new ArrayList<Request>();
+		while (true) {
+			var request = new StubRequest(method, path);
+			var response = new StubResponse();
+			try {
+				limiter.acquire(request, response);
+				requests.add(request);
+			}
+			catch (HaltException e) {
+				assertEquals(503, e.statusCode());
+				assertEquals("1", response.headers.get("Retry-After"));
+				break;
+			}
+		}
+		for (var request : requests) {
+			limiter.release(request, new StubResponse());
+		}
+		return requests.size();
+	}
+
+	// Holds inFlight requests open for the given time, then releases them all.
+	private static void round(ConcurrencyLimiter limiter, int inFlight, long millis) throws Exception {
+		var requests = new ArrayList<Request>();
+		for (int i = 0; i < inFlight; i++) {
+			var request = new StubRequest("GET", "/spaces/1/messages");
+			limiter.acquire(request, new StubResponse());
+			requests.add(request);
+		}
+		Thread.sleep(millis);
+		for (var request : requests) {
+			limiter.release(request, new StubResponse());
+		}
+	}
+
+	private static int limit(ConcurrencyLimiter limiter) {
+		return limiter.metrics().getInt("limit");
+	}
+
+	private static class StubRequest extends Request {
+		private final String method;
+		private final String path;
+		private final Map<String, Object> attributes = new HashMap<>();
+
+		StubRequest(String method, String path) {
+			this.method = method;
+			this.path = path;
+		}
+
+		@Override
+		public String requestMethod() {
+			return method;
+		}
+
+		@Override
+		public String pathInfo() {
+			return path;
+		}
+
+		@Override
+		public void attribute(String name, Object value) {
+			attributes.put(name, value);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T attribute(String name) {
+			return (T) attributes.get(name);
+		}
+	}
+
+	private static class StubResponse extends Response {
+		private final Map<String, String> headers = new HashMap<>();
+
+		@Override
+		public void header(String name, String value) {
+			headers.put(name, value);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.manning.apisecurityinaction;
+
+import org.dalesbred.Database;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaTest {
+	@Test
+	void migratesANewDatabaseToTheLatestVersion() throws Exception {
+		var database = newDatabase();
+		Schema.migrate(database);
+		assertEquals(latestVersion(), version(database));
+
+		// Running again, as every pod does on startup, changes nothing.
+		Schema.migrate(database);
+		assertEquals(latestVersion(), version(database));
+	}
+
+	@Test
+	void upgradesADatabaseCreatedBeforeMigrations() throws Exception {
+		// What the old createTables did: schema.sql and nothing else.
+		var database = newDatabase();
+		try (var in = Schema.class.getResourceAsStream("/schema.sql")) {
+			database.update(new String(in.readAllBytes(), UTF_8));
+		}
+		database.update("INSERT INTO users(user_id, pw_hash) VALUES ('test', 'hash')");
+
+		Schema.migrate(database);
+
+		assertEquals(latestVersion(), version(database));
+		assertEquals(1, database.findUniqueInt("SELECT COUNT(*) FROM users"));
+		assertEquals(0, database.findUniqueInt("SELECT COUNT(*) FROM token_deny_list"));
+		assertEquals(10, increment(database, "SPACE_ID_SEQ"));
+		assertEquals(100, increment(database, "MSG_ID_SEQ"));
+		assertEquals(100, increment(database, "AUDIT_ID_SEQ"));
+	}
+
+	private static Database newDatabase() {
+		return Database.forUrlAndCredentials("jdbc:h2:mem:test-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+	}
+
+	private static int version(Database database) {
+		return database.findUniqueInt("SELECT MAX(version) FROM schema_version");
+	}
+
+	private static long increment(Database database, String sequence) {
+		return database.findUniqueLong("SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+			sequence);
+	}
+
+	private static int latestVersion() {
+		int version = 0;
+		while (Schema.class.getResource("/migrations/V" + (version + 1) + ".sql") != null) {
+			version++;
+		}
+		return version;
+	}
+}
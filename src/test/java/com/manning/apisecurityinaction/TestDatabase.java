@@ -0,0 +1,22 @@
+package com.manning.apisecurityinaction;
+
+import org.dalesbred.Database;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.UUID;
+
+// A fresh, fully migrated in-memory H2 database for each test.
+public class TestDatabase {
+	public static Database create() {
+		var database = Database.forUrlAndCredentials(
+			"jdbc:h2:mem:test-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+		try {
+			Schema.migrate(database);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return database;
+	}
+}
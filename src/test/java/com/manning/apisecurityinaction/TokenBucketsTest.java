@@ -0,0 +1,89 @@
+package com.manning.apisecurityinaction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketsTest {
+	private final TokenBuckets buckets = new TokenBuckets(1_000, Duration.ofMinutes(1));
+
+	@Test
+	void allowsABurstThenOnePermitPerEmissionInterval() throws Exception {
+		var limit = new RateLimitFilter.Limit(10, 5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, buckets.tryAcquire("client", limit), "permit " + i + " of the burst");
+		}
+		var wait = buckets.tryAcquire("client", limit);
+		assertTrue(wait > 0 && wait <= limit.emissionNanos(), "wait " + wait);
+
+		// One permit comes back after the wait, and no more.
+		TimeUnit.NANOSECONDS.sleep(wait);
+		assertEquals(0, buckets.tryAcquire("client", limit));
+		assertTrue(buckets.tryAcquire("client", limit) > 0);
+	}
+
+	@Test
+	void refillsToTheBurstButNoFurther() throws Exception {
+		var limit = new RateLimitFilter.Limit(50, 3);
+		while (buckets.tryAcquire("client", limit) == 0) {
+			// Drain the bucket.
+		}
+		// Long enough to refill the bucket several times over.
+		Thread.sleep(500);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, buckets.tryAcquire("client", limit), "permit " + i + " of the refilled burst");
+		}
+		assertTrue(buckets.tryAcquire("client", limit) > 0);
+	}
+
+	@Test
+	void keepsASeparateBucketPerKey() {
+		var limit = new RateLimitFilter.Limit(1, 2);
+		assertEquals(0, buckets.tryAcquire("a", limit));
+		assertEquals(0, buckets.tryAcquire("a", limit));
+		assertTrue(buckets.tryAcquire("a", limit) > 0);
+		assertEquals(0, buckets.tryAcquire("b", limit));
+		assertEquals(2, buckets.size());
+	}
+
+	@Test
+	void neverGrantsMoreThanTheBurstPlusTheRateUnderContention() throws Exception {
+		var limit = new RateLimitFilter.Limit(1_000, 50);
+		var threads = 8;
+		var pool = Executors.newFixedThreadPool(threads);
+		var start = new CountDownLatch(1);
+		var granted = new AtomicLong();
+		var duration = Duration.ofMillis(300);
+		var results = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			results.add(pool.submit(() -> {
+				start.await();
+				var deadline = System.nanoTime() + duration.toNanos();
+				while (System.nanoTime() < deadline) {
+					if (buckets.tryAcquire("shared", limit) == 0) {
+						granted.incrementAndGet();
+					}
+				}
+				return null;
+			}));
+		}
+		var begin = System.nanoTime();
+		start.countDown();
+		for (var result : results) {
+			result.get();
+		}
+		var elapsedSeconds = (System.nanoTime() - begin) / 1e9;
+		pool.shutdown();
+
+		var allowed = limit.burst + limit.permitsPerSecond * elapsedSeconds;
+		assertTrue(granted.get() <= allowed + 1, granted + " granted, at most " + allowed + " allowed");
+		assertTrue(granted.get() >= limit.permitsPerSecond * duration.toMillis() / 1000 / 2, granted + " granted");
+	}
+}
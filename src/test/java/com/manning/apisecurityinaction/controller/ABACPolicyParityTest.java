@@ -0,0 +1,93 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.controller.DroolsAccessController.SessionMode;
+
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Checks that accessrules.policy makes the same decisions as accessrules.drl, for every minute of the day.
+class ABACPolicyParityTest {
+	private static final List<String> METHODS = List.of("GET", "POST", "PUT", "DELETE", "delete");
+
+	private static DroolsAccessController droolsPerRequest;
+	private static DroolsAccessController droolsReused;
+	private static PolicyAccessController compiled;
+	private static PolicyAccessController compiledCached;
+
+	@BeforeAll
+	static void loadPolicies() {
+		droolsPerRequest = new DroolsAccessController(SessionMode.PER_REQUEST);
+		droolsReused = new DroolsAccessController(SessionMode.REUSED);
+		compiled = new PolicyAccessController(ABACPolicy.load("/accessrules.policy"));
+		compiledCached = new PolicyAccessController(ABACPolicy.load("/accessrules.policy"), 10_000);
+	}
+
+	@AfterAll
+	static void closeSessions() {
+		droolsReused.close();
+	}
+
+	@Test
+	void deniesModerationOutsideOfficeHours() {
+		assertFalse(check(droolsPerRequest, "DELETE", LocalTime.of(20, 30)));
+		assertTrue(check(droolsPerRequest, "GET", LocalTime.of(20, 30)));
+		assertTrue(check(droolsPerRequest, "DELETE", LocalTime.of(10, 0)));
+		assertFalse(check(compiled, "DELETE", LocalTime.of(8, 59)));
+		assertTrue(check(compiled, "DELETE", LocalTime.of(17, 59)));
+		assertFalse(check(compiled, "DELETE", LocalTime.of(18, 0)));
+	}
+
+	@Test
+	void everyEngineAgreesWithPerRequestDrools() {
+		for (var method : METHODS) {
+			for (int minute = 0; minute < 24 * 60; minute++) {
+				var time = LocalTime.of(minute / 60, minute % 60);
+				var expected = check(droolsPerRequest, method, time);
+				var context = method + " at " + time;
+				assertEquals(expected, check(droolsReused, method, time), "droolsReused: " + context);
+				assertEquals(expected, check(compiled, method, time), "compiled: " + context);
+				assertEquals(expected, check(compiledCached, method, time), "compiledCached: " + context);
+			}
+		}
+	}
+
+	@Test
+	void ignoresAttributesTheRulesDoNotReference() {
+		var time = LocalTime.of(20, 30);
+		for (var user : new String[] { "demo", "admin", null }) {
+			var subject = new HashMap<String, Object>();
+			subject.put("user", user);
+			subject.put("groups", null);
+			var resource = new HashMap<String, Object>();
+			resource.put("path", "/spaces/1/messages/1");
+			resource.put("space", "1");
+			var action = Map.<String, Object>of("method", "DELETE");
+			var env = Map.<String, Object>of("timeOfDay", time, "ip", "10.0.0.1");
+
+			var expected = droolsPerRequest.checkPermitted(subject, resource, action, env);
+			assertFalse(expected, "DELETE by " + user);
+			assertEquals(expected, droolsReused.checkPermitted(subject, resource, action, env));
+			assertEquals(expected, compiled.checkPermitted(subject, resource, action, env));
+			assertEquals(expected, compiledCached.checkPermitted(subject, resource, action, env));
+		}
+	}
+
+	private static boolean check(ABACAccessController controller, String method, LocalTime time) {
+		var subject = new HashMap<String, Object>();
+		subject.put("user", "test");
+		subject.put("groups", null);
+		var resource = new HashMap<String, Object>();
+		resource.put("path", "/spaces/1/messages/1");
+		resource.put("space", "1");
+		var action = Map.<String, Object>of("method", method);
+		var env = Map.<String, Object>of("timeOfDay", time, "ip", "127.0.0.1");
+		return controller.checkPermitted(subject, resource, action, env);
+	}
+}
@@ -0,0 +1,54 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.TestDatabase;
+import com.manning.apisecurityinaction.controller.AuditLogWriter.AuditEvent;
+import com.manning.apisecurityinaction.controller.AuditLogWriter.OverflowPolicy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditLogWriterTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void replaysSpilledEventsPastATruncatedLine() throws Exception {
+		var database = TestDatabase.create();
+		var spillFile = dir.resolve("audit.spill");
+		var time = Instant.parse("2026-01-01T00:00:00Z");
+		Files.write(spillFile, List.of(
+			"{\"id\":1,\"method\":\"GET\",\"path\":\"/spaces\",\"time\":\"" + time + "\"}",
+			"{\"id\":2,\"method\":\"POST\",\"pa",
+			"{\"id\":3,\"method\":\"GET\",\"path\":\"/spaces/1\",\"status\":200,\"time\":\"" + time + "\"}"), UTF_8);
+
+		var writer = new AuditLogWriter(database, 10, Duration.ZERO, 10, OverflowPolicy.SPILL, spillFile);
+		writer.close();
+
+		assertEquals(List.of(1, 3), database.findAll(Integer.class, "SELECT audit_id FROM audit_log ORDER BY audit_id"));
+		assertEquals(1, writer.metrics().getLong("malformed"));
+		assertFalse(Files.exists(spillFile));
+		assertFalse(Files.exists(dir.resolve("audit.spill.replaying")));
+	}
+
+	@Test
+	void dropsEventsWrittenAfterClose() {
+		var database = TestDatabase.create();
+		var writer = new AuditLogWriter(database, 10, Duration.ZERO, 1, OverflowPolicy.BLOCK, null);
+		writer.close();
+
+		// Would block forever once the queue is full if close didn't reject writes.
+		for (int i = 0; i < 3; i++) {
+			writer.write(new AuditEvent((long) i, "GET", "/spaces", 200, "test", Instant.now()));
+		}
+		assertEquals(3, writer.metrics().getLong("dropped"));
+		assertEquals(0, database.findUniqueInt("SELECT COUNT(*) FROM audit_log"));
+	}
+}
@@ -0,0 +1,124 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.token.SecureTokenStore;
+import com.manning.apisecurityinaction.token.TokenStore.Token;
+
+import java.net.URI;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import spark.HaltException;
+import spark.Request;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapabilityControllerTest {
+	private static final String PATH = "/spaces/1/messages";
+
+	private final Map<String, Token> tokens = new HashMap<>();
+	private final CapabilityController controller = new CapabilityController(new InMemoryTokenStore());
+
+	@Test
+	void sharesExactlyTheSubsetsOfTheCapabilitysPerms() {
+		for (var held : PermissionsTest.permStrings("rwd", 3)) {
+			var tokenId = newCapability(held);
+			for (var requested : PermissionsTest.permStrings("rwdx", 3)) {
+				var subset = requested.chars().allMatch(c -> held.indexOf(c) >= 0);
+				var context = "sharing '" + requested + "' from '" + held + "'";
+				if (subset) {
+					assertEquals(requested, sharedPerms(share(tokenId, requested)), context);
+				}
+				else {
+					var halt = assertThrows(HaltException.class, () -> share(tokenId, requested), context);
+					assertEquals(403, halt.statusCode());
+				}
+			}
+		}
+	}
+
+	@Test
+	void sharesEverythingTheOldSubstringTestAllowed() {
+		for (var held : PermissionsTest.permStrings("rwd", 3)) {
+			var tokenId = newCapability(held);
+			for (var requested : PermissionsTest.permStrings("rwd", 3)) {
+				if (held.contains(requested)) {
+					assertEquals(requested, sharedPerms(share(tokenId, requested)));
+				}
+			}
+		}
+	}
+
+	@Test
+	void sharesTheCapabilitysOwnPermsByDefault() {
+		assertEquals("rd", sharedPerms(share(newCapability("rd"), null)));
+		assertEquals("", sharedPerms(share(newCapability(""), null)));
+	}
+
+	private String newCapability(String perms) {
+		var token = new Token(Instant.now().plus(1, ChronoUnit.HOURS), "owner");
+		token.attributes.put("path", PATH);
+		token.attributes.put("perms", perms);
+		var tokenId = "cap-" + tokens.size();
+		tokens.put(tokenId, token);
+		return tokenId;
+	}
+
+	private JSONObject share(String tokenId, String perms) {
+		var body = new JSONObject()
+			.put("uri", "https://localhost:4567" + PATH + "?access_token=" + tokenId)
+			.put("user", "friend")
+			.putOpt("perms", perms);
+		return controller.share(new ShareRequest(body.toString()), null);
+	}
+
+	private String sharedPerms(JSONObject response) {
+		var query = URI.create(response.get("uri").toString()).getQuery();
+		var token = tokens.get(query.substring(query.indexOf('=') + 1));
+		assertEquals("friend", token.username);
+		return token.attributes.get("perms");
+	}
+
+	private static class ShareRequest extends Request {
+		private final String body;
+
+		ShareRequest(String body) {
+			this.body = body;
+		}
+
+		@Override
+		public String body() {
+			return body;
+		}
+
+		@Override
+		public String uri() {
+			return "/capabilities";
+		}
+	}
+
+	private class InMemoryTokenStore implements SecureTokenStore {
+		private final AtomicInteger nextId = new AtomicInteger();
+
+		@Override
+		public String create(Request request, Token token) {
+			var tokenId = "shared-" + nextId.incrementAndGet();
+			tokens.put(tokenId, token);
+			return tokenId;
+		}
+
+		@Override
+		public Optional<Token> read(Request request, String tokenId) {
+			return Optional.ofNullable(tokens.get(tokenId));
+		}
+
+		@Override
+		public void revoke(Request request, String tokenId) {
+			tokens.remove(tokenId);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.TestDatabase;
+
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdAllocatorTest {
+	@Test
+	void idsStayUniqueAcrossPodsWhenTheIncrementChanges() {
+		var database = TestDatabase.create();
+		// Two allocators on one database behave like two pods.
+		var pods = new IdAllocator[] {
+			new IdAllocator(database, "msg_id_seq"), new IdAllocator(database, "msg_id_seq")
+		};
+		var ids = new HashSet<Long>();
+		for (var increment : new int[] { 100, 1000, 7, 100 }) {
+			database.update("ALTER SEQUENCE msg_id_seq INCREMENT BY " + increment);
+			for (int i = 0; i < 2_500; i++) {
+				var id = pods[i % 2].nextId();
+				assertTrue(ids.add(id), "duplicate id " + id + " with increment " + increment);
+			}
+		}
+	}
+}
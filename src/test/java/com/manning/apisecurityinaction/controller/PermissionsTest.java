@@ -0,0 +1,69 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PermissionsTest {
+	@Test
+	void singlePermissionChecksAgreeWithTheSubstringTest() {
+		// requirePermission is only ever given one letter, which the old perms.contains(permission) handled exactly.
+		for (var held : permStrings("rwdx", 3)) {
+			for (var required : List.of("r", "w", "d")) {
+				assertEquals(held.contains(required), Permissions.includes(Permissions.parse(held),
+					Permissions.parse(required)), "'" + held + "' requiring " + required);
+			}
+		}
+	}
+
+	@Test
+	void unknownLettersGrantNothingAndCanNeverBeSatisfied() {
+		assertEquals(Permissions.parse("r"), Permissions.parse("r") & Permissions.parse("rx"));
+		assertFalse(Permissions.includes(Permissions.parse("x"), Permissions.parse("r")));
+		for (var held : permStrings("rwdx", 3)) {
+			assertFalse(Permissions.includes(Permissions.parse(held), Permissions.parse("x")), held);
+			assertFalse(Permissions.includes(Permissions.parse(held), Permissions.parse("rx")), held);
+		}
+	}
+
+	@Test
+	void emptyPermsHoldNothingAndRequireNothing() {
+		assertEquals(0, Permissions.parse(""));
+		for (var required : List.of("r", "w", "d", "rwd")) {
+			assertFalse(Permissions.includes(Permissions.parse(""), Permissions.parse(required)), required);
+		}
+		for (var held : permStrings("rwdx", 3)) {
+			assertTrue(Permissions.includes(Permissions.parse(held), Permissions.parse("")), held);
+		}
+	}
+
+	@Test
+	void includesIsTheSubsetRelation() {
+		for (var held : permStrings("rwd", 3)) {
+			for (var required : permStrings("rwd", 3)) {
+				var subset = required.chars().allMatch(c -> held.indexOf(c) >= 0);
+				assertEquals(subset, Permissions.includes(Permissions.parse(held), Permissions.parse(required)),
+					"'" + held + "' including '" + required + "'");
+			}
+		}
+	}
+
+	// Every string of up to maxLength letters from the alphabet, repeats and all.
+	static List<String> permStrings(String alphabet, int maxLength) {
+		var strings = new ArrayList<String>(List.of(""));
+		var previous = List.of("");
+		for (int length = 1; length <= maxLength; length++) {
+			var next = new ArrayList<String>();
+			for (var prefix : previous) {
+				for (var c : alphabet.toCharArray()) {
+					next.add(prefix + c);
+				}
+			}
+			strings.addAll(next);
+			previous = next;
+		}
+		return strings;
+	}
+}
@@ -0,0 +1,63 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScopesTest {
+	private static final List<String> REQUIRED = List.of("create_space", "post_message", "read_message",
+		"list_messages", "delete_message", "add_member");
+	private static final List<String> HELD = List.of("create_space", "read_message", "add_member", "full_access",
+		"unknown_scope", "read_messages", "read");
+
+	@Test
+	void agreesWithSplittingTheScopeString() {
+		for (var required : REQUIRED) {
+			Scopes.intern(required);
+		}
+		for (var tokenScope : tokenScopes()) {
+			var parsed = Scopes.parse(tokenScope);
+			for (var required : REQUIRED) {
+				// What requireScope did before: split the token's scope and look for the required one.
+				var expected = Arrays.asList(tokenScope.split(" ")).contains(required);
+				assertEquals(expected, (parsed & Scopes.intern(required)) != 0,
+					"'" + tokenScope + "' requiring " + required);
+			}
+		}
+	}
+
+	@Test
+	void dropsScopesThatNoFilterRequires() {
+		var required = Scopes.intern("list_messages");
+		assertEquals(0, Scopes.parse("never_required another_unknown"));
+		assertEquals(required, Scopes.parse("never_required list_messages another_unknown"));
+		assertEquals(0, Scopes.parse(""));
+		assertEquals(0, Scopes.parse("   "));
+	}
+
+	@Test
+	void internsEachScopeOnce() {
+		var bit = Scopes.intern("post_message");
+		assertEquals(1, Long.bitCount(bit));
+		assertEquals(bit, Scopes.intern("post_message"));
+		assertNotEquals(bit, Scopes.intern("delete_message"));
+	}
+
+	// Every subset of HELD in order, joined by one space, plus some oddly spaced strings.
+	private static List<String> tokenScopes() {
+		var scopes = new ArrayList<String>();
+		for (int mask = 0; mask < 1 << HELD.size(); mask++) {
+			var selected = new ArrayList<String>();
+			for (int i = 0; i < HELD.size(); i++) {
+				if ((mask & (1 << i)) != 0) selected.add(HELD.get(i));
+			}
+			scopes.add(String.join(" ", selected));
+		}
+		scopes.addAll(List.of(" read_message", "read_message ", "create_space  read_message", "READ_MESSAGE",
+			"read_message\tlist_messages"));
+		return scopes;
+	}
+}
@@ -0,0 +1,138 @@
+package com.manning.apisecurityinaction.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttributeCodecTest {
+	private static final List<String> SCOPES = List.of("create_space", "post_message", "read_message", "list_messages",
+		"delete_message", "add_member", "full_access");
+	private static final List<String> PERMS = List.of("r", "w", "d");
+	private static final int PACKED = 0x80;
+
+	@Test
+	void packsEveryCombinationOfKnownScopes() {
+		for (int mask = 0; mask < 1 << SCOPES.size(); mask++) {
+			var scope = join(SCOPES, mask, " ");
+			var encoded = AttributeCodec.encode(Map.of("scope", scope));
+			assertEquals(0 | PACKED, encoded[1] & 0xFF, scope);
+			assertEquals(Map.of("scope", scope), decode(encoded));
+		}
+	}
+
+	@Test
+	void packsEveryCombinationOfPerms() {
+		for (int mask = 0; mask < 1 << PERMS.size(); mask++) {
+			var perms = join(PERMS, mask, "");
+			var encoded = AttributeCodec.encode(Map.of("perms", perms));
+			assertEquals(2 | PACKED, encoded[1] & 0xFF, perms);
+			assertEquals(Map.of("perms", perms), decode(encoded));
+		}
+	}
+
+	@Test
+	void keepsValuesItCannotPackExactly() {
+		for (var attributes : List.of(
+				Map.of("scope", "read_message create_space"),
+				Map.of("scope", "read_message frobnicate"),
+				Map.of("scope", "read_message  list_messages"),
+				Map.of("scope", " read_message"),
+				Map.of("perms", "wr"),
+				Map.of("perms", "rwx"),
+				Map.of("path", "/spaces/1/messages/2"),
+				Map.of("path", ""))) {
+			var encoded = AttributeCodec.encode(attributes);
+			assertEquals(0, encoded[1] & PACKED, attributes.toString());
+			assertEquals(attributes, decode(encoded));
+		}
+	}
+
+	@Test
+	void roundTripsUnknownKeys() {
+		var attributes = new LinkedHashMap<String, String>();
+		attributes.put("scope", "read_message list_messages");
+		attributes.put("client_id", "app-123");
+		attributes.put("", "empty key");
+		attributes.put("note", "caf\u00e9 \ud83d\ude00 " + "x".repeat(300));
+		attributes.put("path", "/spaces/1/messages");
+		attributes.put("perms", "rd");
+
+		assertEquals(attributes, decode(AttributeCodec.encode(attributes)));
+		assertEquals(Map.of(), decode(AttributeCodec.encode(Map.of())));
+	}
+
+	@Test
+	void rejectsMalformedInput() {
+		for (var encoded : List.of(
+				bytes(),                          // no version
+				bytes(2),                         // unknown version
+				bytes(1, 0x05, 0x00),             // unknown key tag
+				bytes(1, 0x81, 0x00),             // path can't be packed
+				bytes(1, 0x80, 0x80, 0x01),       // scope mask 128 is past the dictionary
+				bytes(1, 0x82, 0x08),             // perms mask 8 likewise
+				bytes(1, 0x80, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF), // varint longer than an int
+				bytes(1, 0x01, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F), // negative string length
+				bytes(1, 0x01, 0x05, 'a', 'b'))) {            // string longer than what's left
+			assertThrows(IllegalArgumentException.class, () -> decode(encoded), Arrays.toString(encoded));
+		}
+	}
+
+	@Test
+	void rejectsTruncatedInputOrDecodesOnlyWholeEntries() {
+		var attributes = new LinkedHashMap<String, String>();
+		attributes.put("scope", "read_message list_messages");
+		attributes.put("path", "/spaces/1/messages");
+		attributes.put("client_id", "app-123");
+		attributes.put("perms", "r");
+		var encoded = AttributeCodec.encode(attributes);
+
+		var entryBoundaries = new ArrayList<Integer>();
+		for (int length = 0; length < encoded.length; length++) {
+			var truncated = Arrays.copyOf(encoded, length);
+			Map<String, String> decoded;
+			try {
+				decoded = decode(truncated);
+			}
+			catch (IllegalArgumentException e) {
+				continue;
+			}
+			// Cut exactly between entries, so what's there is a valid encoding of the earlier ones.
+			entryBoundaries.add(length);
+			for (var entry : decoded.entrySet()) {
+				assertEquals(attributes.get(entry.getKey()), entry.getValue(), "prefix of length " + length);
+			}
+			assertTrue(decoded.size() < attributes.size());
+		}
+		assertEquals(attributes.size(), entryBoundaries.size());
+	}
+
+	private static Map<String, String> decode(byte[] encoded) {
+		var attributes = new HashMap<String, String>();
+		AttributeCodec.decode(encoded, attributes);
+		return attributes;
+	}
+
+	private static String join(List<String> dictionary, int mask, String separator) {
+		var selected = new ArrayList<String>();
+		for (int i = 0; i < dictionary.size(); i++) {
+			if ((mask & (1 << i)) != 0) {
+				selected.add(dictionary.get(i));
+			}
+		}
+		return String.join(separator, selected);
+	}
+
+	private static byte[] bytes(int... values) {
+		var bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,69 @@
+package com.manning.apisecurityinaction.token;
+
+import com.manning.apisecurityinaction.TestDatabase;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import org.dalesbred.Database;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseTokenStoreTest {
+	private Database database;
+
+	@BeforeEach
+	void createDatabase() {
+		database = TestDatabase.create();
+		database.update("INSERT INTO users(user_id, pw_hash) VALUES ('test', 'hash')");
+	}
+
+	@Test
+	void writesOnlyPackedAttributesOnceTheRolloutIsOver() {
+		try (var store = new DatabaseTokenStore(database, false)) {
+			var tokenIds = List.of(store.create(null, newToken("/spaces/1")),
+				store.createAll(null, List.of(newToken("/spaces/2"))).get(0));
+
+			assertEquals(0, database.findUniqueInt("SELECT COUNT(*) FROM tokens WHERE attributes IS NOT NULL"));
+			assertEquals(2, database.findUniqueInt("SELECT COUNT(*) FROM tokens WHERE packed_attributes IS NOT NULL"));
+			assertEquals("/spaces/1", store.read(null, tokenIds.get(0)).orElseThrow().attributes.get("path"));
+			assertEquals("/spaces/2", store.read(null, tokenIds.get(1)).orElseThrow().attributes.get("path"));
+		}
+	}
+
+	@Test
+	void writesJsonAttributesTooDuringTheRollout() {
+		try (var store = new DatabaseTokenStore(database, true)) {
+			store.create(null, newToken("/spaces/1"));
+			store.createAll(null, List.of(newToken("/spaces/2")));
+
+			assertEquals(2, database.findUniqueInt(
+				"SELECT COUNT(*) FROM tokens WHERE attributes IS NOT NULL AND packed_attributes IS NOT NULL"));
+		}
+	}
+
+	@Test
+	void readsRowsWrittenBeforeAttributesWerePacked() {
+		try (var store = new DatabaseTokenStore(database, false)) {
+			var tokenId = "legacy-token";
+			database.update("INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES (?, ?, ?, ?)",
+				CryptoPrimitives.sha256Base64url(tokenId), "test", Instant.now().plus(1, ChronoUnit.HOURS),
+				"{\"path\":\"/spaces/1\",\"perms\":\"r\",\"custom\":\"value\"}");
+
+			var token = store.read(null, tokenId).orElseThrow();
+			assertEquals("test", token.username);
+			assertEquals("/spaces/1", token.attributes.get("path"));
+			assertEquals("r", token.attributes.get("perms"));
+			assertEquals("value", token.attributes.get("custom"));
+		}
+	}
+
+	private static TokenStore.Token newToken(String path) {
+		var token = new TokenStore.Token(Instant.now().plus(1, ChronoUnit.HOURS), "test");
+		token.attributes.put("path", path);
+		token.attributes.put("perms", "rw");
+		return token;
+	}
+}
@@ -0,0 +1,149 @@
+package com.manning.apisecurityinaction.token;
+
+import com.manning.apisecurityinaction.TestDatabase;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import org.dalesbred.Database;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DenyListTest {
+	private static final byte[] KEY = new byte[32];
+
+	private Database database;
+	private DenyList denyList;
+
+	@BeforeEach
+	void createDenyList() {
+		database = TestDatabase.create();
+		denyList = new DenyList(database, Duration.ofMinutes(1), Duration.ofHours(1), Duration.ofHours(1));
+	}
+
+	@AfterEach
+	void close() {
+		denyList.close();
+		database.update("SHUTDOWN");
+	}
+
+	@Test
+	void revokedSignedJwtStaysRevokedWhateverTheSpellingOfItsSignature() throws Exception {
+		var store = new SignedJwtTokenStore(new MACSigner(KEY), new MACVerifier(KEY), JWSAlgorithm.HS256,
+			"https://localhost:4567", denyList);
+		var tokenId = store.create(null, newToken());
+		store.revoke(null, tokenId);
+
+		var respellings = 0;
+		for (var alternative : respellings(tokenId)) {
+			if (new SignedJwtTokenStore(new MACSigner(KEY), new MACVerifier(KEY), JWSAlgorithm.HS256,
+					"https://localhost:4567").read(null, alternative).isPresent()) {
+				respellings++;
+				assertTrue(store.read(null, alternative).isEmpty(), alternative);
+			}
+		}
+		// An HS256 tag is 43 characters, the last carrying 4 unused bits.
+		assertEquals(3, respellings);
+	}
+
+	@Test
+	void revokedJsonTokenStaysRevokedWhateverItsSpelling() {
+		var store = new JsonTokenStore(denyList);
+		var tokenId = store.create(null, newToken());
+		store.revoke(null, tokenId);
+
+		assertTrue(store.read(null, tokenId).isEmpty());
+		for (var alternative : respellings(tokenId)) {
+			assertTrue(store.read(null, alternative).isEmpty(), alternative);
+		}
+	}
+
+	@Test
+	void rejectsRevocationsBeyondTheMaximumTokenLifetime() {
+		var store = new JsonTokenStore(denyList);
+		var forged = new TokenStore.Token(Instant.now().plus(3650, ChronoUnit.DAYS), "test");
+		var tokenId = store.create(null, forged);
+
+		assertTrue(store.read(null, tokenId).isEmpty());
+		store.revoke(null, tokenId);
+		assertThrows(IllegalArgumentException.class, () -> denyList.revoke(tokenId, forged.expiry));
+		assertEquals(0, database.findUniqueInt("SELECT COUNT(*) FROM token_deny_list"));
+	}
+
+	@Test
+	void dropsEachBucketOnceAllItsTokensHaveExpired() throws Exception {
+		try (var fastDenyList = new DenyList(database, Duration.ofSeconds(1), Duration.ofMillis(50), Duration.ofHours(1))) {
+			// Tokens expiring in the same one second bucket, so they are dropped together.
+			var bucketStart = Instant.now().plusSeconds(2).truncatedTo(ChronoUnit.SECONDS);
+			var soon = bucketStart.plusMillis(100);
+			var later = Instant.now().plus(1, ChronoUnit.HOURS);
+			fastDenyList.revoke("soon-1", soon);
+			fastDenyList.revoke("soon-2", bucketStart.plusMillis(900));
+			fastDenyList.revoke("later", later);
+
+			assertTrue(fastDenyList.isRevoked("soon-1", soon));
+			assertEquals(3, fastDenyList.metrics().getLong("revokedTokens"));
+			assertEquals(2, fastDenyList.metrics().getInt("buckets"));
+
+			waitFor(() -> fastDenyList.metrics().getInt("buckets") == 1);
+			assertFalse(Instant.now().isBefore(bucketStart.plusSeconds(1)), "dropped before every token expired");
+			assertEquals(1, fastDenyList.metrics().getLong("revokedTokens"));
+			assertTrue(fastDenyList.isRevoked("later", later));
+			assertEquals(List.of(CryptoPrimitives.sha256Base64url("later")),
+				database.findAll(String.class, "SELECT token_hash FROM token_deny_list"));
+		}
+	}
+
+	@Test
+	void seesRevocationsMadeOnOtherPods() throws Exception {
+		try (var otherPod = new DenyList(database, Duration.ofMinutes(1), Duration.ofMillis(50), Duration.ofHours(1))) {
+			var expiry = Instant.now().plus(10, ChronoUnit.MINUTES);
+			assertFalse(otherPod.isRevoked("token", expiry));
+			denyList.revoke("token", expiry);
+			waitFor(() -> otherPod.isRevoked("token", expiry));
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		var deadline = Instant.now().plusSeconds(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue(Instant.now().isBefore(deadline), "timed out");
+			Thread.sleep(20);
+		}
+	}
+
+	private static TokenStore.Token newToken() {
+		var token = new TokenStore.Token(Instant.now().plus(10, ChronoUnit.MINUTES), "test");
+		token.attributes.put("scope", "read_message");
+		return token;
+	}
+
+	// The token with its last character replaced by each other base64url character that decodes the same.
+	private static List<String> respellings(String tokenId) {
+		var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		var prefix = tokenId.substring(0, tokenId.length() - 1);
+		var decoded = decodeLast(tokenId);
+		var result = new ArrayList<String>();
+		for (var c : alphabet.toCharArray()) {
+			var candidate = prefix + c;
+			if (!candidate.equals(tokenId) && Arrays.equals(decoded, decodeLast(candidate))) {
+				result.add(candidate);
+			}
+		}
+		return result;
+	}
+
+	private static byte[] decodeLast(String tokenId) {
+		return Base64url.decode(tokenId.substring(tokenId.lastIndexOf('.') + 1));
+	}
+}
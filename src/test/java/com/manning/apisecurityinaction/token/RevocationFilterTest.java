@@ -0,0 +1,95 @@
+package com.manning.apisecurityinaction.token;
+
+import com.manning.apisecurityinaction.TestDatabase;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.UUID;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.nimbusds.jose.crypto.DirectDecrypter;
+import com.nimbusds.jwt.EncryptedJWT;
+import org.dalesbred.Database;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RevocationFilterTest {
+	private static final Duration MAX_TOKEN_LIFETIME = Duration.ofHours(1);
+
+	private Database database;
+	private Instant trackedSince;
+
+	@BeforeEach
+	void createDatabase() {
+		database = TestDatabase.create();
+		database.update("INSERT INTO users(user_id, pw_hash) VALUES ('test', 'hash')");
+		// As if revoked_tokens was created half an hour ago. JWT expiry is in whole seconds.
+		trackedSince = Instant.now().minus(30, ChronoUnit.MINUTES).truncatedTo(ChronoUnit.SECONDS);
+		database.update("UPDATE schema_version SET applied_at = ? WHERE version = 4", trackedSince);
+	}
+
+	@Test
+	void neverMissesARevokedTokenOnAnyPod() throws Exception {
+		try (var filter = newFilter(); var otherPod = newFilter()) {
+			assertEquals(trackedSince, filter.trackedSince());
+			var revoked = new ArrayList<String>();
+			for (int i = 0; i < 500; i++) {
+				var tokenId = UUID.randomUUID().toString();
+				filter.revoke(tokenId, Instant.now().plus(10, ChronoUnit.MINUTES));
+				revoked.add(tokenId);
+			}
+			for (var tokenId : revoked) {
+				assertTrue(filter.mightBeRevoked(tokenId), tokenId);
+			}
+
+			// Let both filters refresh and rebuild a few times.
+			Thread.sleep(500);
+			for (var tokenId : revoked) {
+				assertTrue(filter.mightBeRevoked(tokenId), tokenId);
+				assertTrue(otherPod.mightBeRevoked(tokenId), tokenId);
+			}
+		}
+	}
+
+	@Test
+	void checksTokensThatMayPredateTheFilterAgainstTheAllowList() throws Exception {
+		try (var allowList = new DatabaseTokenStore(database); var filter = newFilter()) {
+			var store = new EncryptedJwtTokenStore(new SecretKeySpec(new byte[32], "AES"), allowList, filter,
+				MAX_TOKEN_LIFETIME);
+			// Could have been issued just before trackedSince, so revoked by deleting its allow list row alone.
+			var beforeBoundary = store.create(null, newToken(trackedSince.plus(MAX_TOKEN_LIFETIME).minusSeconds(1)));
+			database.update("DELETE FROM tokens");
+			assertFalse(filter.mightBeRevoked(jwtId(beforeBoundary)));
+			assertTrue(store.read(null, beforeBoundary).isEmpty());
+
+			// Issued no earlier than trackedSince, so its revocation went through the filter.
+			var atBoundary = store.create(null, newToken(trackedSince.plus(MAX_TOKEN_LIFETIME)));
+			var afterBoundary = store.create(null, newToken(trackedSince.plus(MAX_TOKEN_LIFETIME).plusSeconds(1)));
+			assertTrue(store.read(null, atBoundary).isPresent());
+			assertTrue(store.read(null, afterBoundary).isPresent());
+			store.revoke(null, atBoundary);
+			store.revoke(null, afterBoundary);
+			assertTrue(store.read(null, atBoundary).isEmpty());
+			assertTrue(store.read(null, afterBoundary).isEmpty());
+		}
+	}
+
+	private RevocationFilter newFilter() {
+		return new RevocationFilter(database, 10_000, 0.001, Duration.ofMillis(50), Duration.ofMillis(200));
+	}
+
+	private static TokenStore.Token newToken(Instant expiry) {
+		var token = new TokenStore.Token(expiry, "test");
+		token.attributes.put("scope", "read_message");
+		return token;
+	}
+
+	private static String jwtId(String tokenId) throws Exception {
+		var jwt = EncryptedJWT.parse(tokenId);
+		jwt.decrypt(new DirectDecrypter(new byte[32]));
+		return jwt.getJWTClaimsSet().getJWTID();
+	}
+}
@@ -0,0 +1,84 @@
+package com.manning.apisecurityinaction.token;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignedJwtAccessTokenStoreTest {
+	private static final String AUDIENCE = "https://localhost:4567";
+	private static final String ISSUER = "https://as.example.com";
+
+	private HttpServer server;
+	private volatile JWKSet published;
+	private ECKey signingKey;
+	private SignedJwtAccessTokenStore store;
+
+	@BeforeEach
+	void startAuthorizationServer() throws Exception {
+		signingKey = new ECKeyGenerator(Curve.P_256).keyID("current").generate();
+		published = new JWKSet(signingKey).toPublicJWKSet();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/jwks", exchange -> {
+			var body = published.toString().getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		store = new SignedJwtAccessTokenStore(ISSUER, AUDIENCE, JWSAlgorithm.ES256,
+			URI.create("http://localhost:" + server.getAddress().getPort() + "/jwks"), Duration.ofMillis(50), 100);
+	}
+
+	@AfterEach
+	void stop() {
+		store.close();
+		server.stop(0);
+	}
+
+	@Test
+	void stopsServingCachedClaimsOnceTheSigningKeyIsWithdrawn() throws Exception {
+		var tokenId = accessToken();
+		assertTrue(store.read(null, tokenId).isPresent());
+		assertEquals(1, store.cacheStats().missCount());
+		assertTrue(store.read(null, tokenId).isPresent());
+		assertEquals(1, store.cacheStats().hitCount());
+
+		published = new JWKSet(new ECKeyGenerator(Curve.P_256).keyID("next").generate()).toPublicJWKSet();
+		Thread.sleep(500);
+
+		assertTrue(store.read(null, tokenId).isEmpty());
+	}
+
+	private String accessToken() throws Exception {
+		var jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID(signingKey.getKeyID()).build(),
+			new JWTClaimsSet.Builder()
+				.issuer(ISSUER)
+				.audience(AUDIENCE)
+				.subject("test")
+				.expirationTime(Date.from(Instant.now().plus(1, ChronoUnit.HOURS)))
+				.claim("scope", "read_message")
+				.build());
+		jwt.sign(new ECDSASigner(signingKey));
+		return jwt.serialize();
+	}
+}